@@ -0,0 +1,143 @@
+package com.adam.lane.amortifier.bench;
+
+import java.lang.management.ManagementFactory;
+
+import com.adam.lane.amortifier.AmortizationSchedule;
+import com.adam.lane.amortifier.Loan;
+
+/**
+ * Micro benchmarks for the loan math, run on a desktop JVM. Each benchmark
+ * reports throughput and the bytes allocated per operation, so engine
+ * changes can be compared against a baseline.
+ * 
+ * The loan classes have no Android dependencies, so from the project root:
+ * 
+ * <pre>
+ * javac -d bench/out -sourcepath src bench/src/com/adam/lane/amortifier/bench/LoanBenchmark.java
+ * java -cp bench/out com.adam.lane.amortifier.bench.LoanBenchmark [filter]
+ * </pre>
+ */
+public class LoanBenchmark
+{
+    private static final long WARMUP_NANOS = 1000L * 1000 * 1000;
+    private static final long MEASURE_NANOS = 2000L * 1000 * 1000;
+
+    // results are folded in here so the JIT cannot drop the work
+    private static volatile double sSink;
+
+    private interface Benchmark
+    {
+        double run();
+    }
+
+    public static void main(String[] args)
+    {
+        String filter = (args.length > 0) ? args[0] : "";
+
+        System.out.println(String.format("%-40s %15s %15s", "benchmark", "ops/s", "bytes/op"));
+
+        measure(filter, "monthlyPayment", new Benchmark()
+        {
+            private final Loan mLoan = new Loan(250000.0, 0.065, 360.0, 0.0);
+
+            public double run()
+            {
+                return mLoan.getMonthlyPayment();
+            }
+        });
+
+        int[] years = new int[] { 15, 30, 40 };
+        double[] extras = new double[] { 0, 250 };
+        for(int term : years)
+        {
+            for(double extra : extras)
+            {
+                final Loan loan = new Loan(250000.0, 0.065, term * 12.0, extra);
+                String suffix = term + "y" + ((extra > 0) ? " extra" : "");
+
+                measure(filter, "schedule " + suffix, new Benchmark()
+                {
+                    public double run()
+                    {
+                        return loan.getAmortizationSchedule().size();
+                    }
+                });
+
+                final AmortizationSchedule schedule = loan.getAmortizationSchedule();
+                measure(filter, "totals loop " + suffix, new Benchmark()
+                {
+                    public double run()
+                    {
+                        double total = 0;
+                        double interest = 0;
+                        for(int i = 0; i < schedule.size(); i++)
+                        {
+                            total += schedule.getTotalPaid(i);
+                            interest += schedule.getInterestPaid(i);
+                        }
+                        return total + interest;
+                    }
+                });
+
+                measure(filter, "closed-form totals " + suffix, new Benchmark()
+                {
+                    public double run()
+                    {
+                        Loan fresh = new Loan(250000.0, 0.065, loan.getTerm(), loan.getExtraPayment());
+                        return fresh.getTotalPaid() + fresh.getTotalInterestPaid();
+                    }
+                });
+            }
+        }
+    }
+
+    private static void measure(String filter, String name, Benchmark benchmark)
+    {
+        if(!name.contains(filter))
+        {
+            return;
+        }
+
+        loop(benchmark, WARMUP_NANOS);
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = loop(benchmark, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double opsPerSecond = ops * 1e9 / elapsed;
+        String bytesPerOp = (allocatedBefore < 0) ? "n/a" : String.format("%.1f", (double) allocated / ops);
+        System.out.println(String.format("%-40s %15.0f %15s", name, opsPerSecond, bytesPerOp));
+    }
+
+    private static long loop(Benchmark benchmark, long nanos)
+    {
+        long ops = 0;
+        double sink = 0;
+        long end = System.nanoTime() + nanos;
+        do
+        {
+            // check the clock every 64 calls so timing stays out of the way
+            for(int i = 0; i < 64; i++)
+            {
+                sink += benchmark.run();
+            }
+            ops += 64;
+        } while(System.nanoTime() < end);
+
+        sSink = sink;
+        return ops;
+    }
+
+    // bytes allocated by this thread so far, or -1 when the JVM cannot say
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
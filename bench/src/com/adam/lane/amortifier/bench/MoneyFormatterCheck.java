@@ -0,0 +1,94 @@
+package com.adam.lane.amortifier.bench;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import com.adam.lane.amortifier.MoneyFormatter;
+
+/**
+ * Checks that MoneyFormatter prints exactly what the locale's currency
+ * NumberFormat prints, in every available locale, for random amounts and
+ * for amounts right at a rounding tie. Run on a desktop JVM like
+ * {@link LoanBenchmark}:
+ *
+ * <pre>
+ * javac -d bench/out -sourcepath src bench/src/com/adam/lane/amortifier/bench/MoneyFormatterCheck.java
+ * java -cp bench/out com.adam.lane.amortifier.bench.MoneyFormatterCheck
+ * </pre>
+ *
+ * Exits with status 1 if any amount is formatted differently.
+ */
+public class MoneyFormatterCheck
+{
+    private static final int RANDOM_AMOUNTS = 2000;
+
+    // halves and near halves of the smallest unit, in both directions
+    private static final double[] EDGE_AMOUNTS = new double[] { 0, -0.0, 0.004, -0.004, 0.005, -0.005, 0.015, 0.025, 0.125, 0.375,
+            1.005, 1.115, 2.675, 1234.565, -1234.565, 0.5, 1.5, 2.5, -2.5, 999999.995, 1234567.891, -1234567.891, 1e12 + 0.005,
+            123456789012.345 };
+
+    public static void main(String[] args)
+    {
+        Locale defaultLocale = Locale.getDefault();
+        Locale[] locales = Locale.getAvailableLocales();
+        int failures = 0;
+        int failedLocales = 0;
+
+        try
+        {
+            for(Locale locale : locales)
+            {
+                Locale.setDefault(locale);
+                MoneyFormatter formatter = MoneyFormatter.getInstance();
+                NumberFormat expected = NumberFormat.getCurrencyInstance(locale);
+
+                Random random = new Random(locale.toString().hashCode());
+                int localeFailures = 0;
+                for(int i = 0; i < EDGE_AMOUNTS.length + RANDOM_AMOUNTS; i++)
+                {
+                    double amount;
+                    if(i < EDGE_AMOUNTS.length)
+                    {
+                        amount = EDGE_AMOUNTS[i];
+                    }
+                    else if(i % 2 == 0)
+                    {
+                        // whole cents plus a half, the ties
+                        amount = (random.nextInt(2000000) - 1000000) / 100.0 + 0.005;
+                    }
+                    else
+                    {
+                        amount = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12));
+                    }
+
+                    String want = expected.format(amount);
+                    String got = formatter.format(amount);
+                    if(!want.equals(got))
+                    {
+                        if(localeFailures++ == 0)
+                        {
+                            System.out.println(locale + ": " + amount + " gave '" + got + "', expected '" + want + "'");
+                        }
+                    }
+                }
+
+                if(localeFailures > 0)
+                {
+                    failedLocales++;
+                    failures += localeFailures;
+                }
+            }
+        }
+        finally
+        {
+            Locale.setDefault(defaultLocale);
+        }
+
+        System.out.println(failures + " amounts in " + failedLocales + " of " + locales.length + " locales disagree");
+        if(failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+}
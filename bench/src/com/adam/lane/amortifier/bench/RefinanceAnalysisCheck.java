@@ -0,0 +1,102 @@
+package com.adam.lane.amortifier.bench;
+
+import java.util.Random;
+
+import com.adam.lane.amortifier.AdjustableRate;
+import com.adam.lane.amortifier.AmortizationSchedule;
+import com.adam.lane.amortifier.Loan;
+import com.adam.lane.amortifier.RefinanceAnalysis;
+
+/**
+ * Checks the refinance break-even points against a linear scan of the
+ * cumulative savings taken from the full amortization tables, for random
+ * fixed and adjustable-rate loans. Run on a desktop JVM like
+ * {@link LoanBenchmark}:
+ *
+ * <pre>
+ * javac -d bench/out -sourcepath src bench/src/com/adam/lane/amortifier/bench/RefinanceAnalysisCheck.java
+ * java -cp bench/out com.adam.lane.amortifier.bench.RefinanceAnalysisCheck [cases]
+ * </pre>
+ *
+ * Exits with status 1 if any case disagrees.
+ */
+public class RefinanceAnalysisCheck
+{
+    // savings within this of the closing costs count as a tie either way
+    private static final double TIE = 1e-6;
+
+    public static void main(String[] args)
+    {
+        int cases = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        Random random = new Random(42);
+        int failures = 0;
+
+        for(int i = 0; i < cases; i++)
+        {
+            double principal = 10000 + random.nextInt(490000);
+            double rate = 0.02 + random.nextInt(600) / 10000.0;
+            double term = 60 + random.nextInt(301);
+            Loan loan = new Loan(principal, rate, term, (random.nextInt(4) == 0) ? random.nextInt(300) : 0);
+
+            // most cases are adjustable, resetting up or down after a few years
+            if(random.nextInt(5) != 0)
+            {
+                int fixedPayments = 12 + random.nextInt(108);
+                double indexedRate = 0.01 + random.nextInt(900) / 10000.0;
+                loan.setAdjustableRate(new AdjustableRate(fixedPayments, 12, indexedRate, 0.02, 0.05));
+            }
+
+            int paymentsMade = random.nextInt(Math.max(1, loan.getPaymentCount()));
+            double[] rates = new double[] { 0.02 + random.nextInt(600) / 10000.0 };
+            double[] terms = new double[] { 60 + random.nextInt(301) };
+            double[] closingCosts = new double[] { random.nextInt(10000) };
+
+            RefinanceAnalysis analysis = new RefinanceAnalysis(loan, paymentsMade, rates, terms, closingCosts, 1);
+            Loan offer = new Loan(analysis.getBalance(), rates[0], terms[0], loan.getExtraPayment());
+
+            int breakEven = analysis.getBreakEven(0);
+            if(!agrees(loan.getAmortizationSchedule(), paymentsMade, offer.getAmortizationSchedule(), closingCosts[0], breakEven))
+            {
+                failures++;
+                System.out.println(String.format("case %d: P=%.0f %.2f%% %.0f months%s, %d made, offer %.2f%%/%.0f months, costs %.0f: got %d",
+                        i, principal, rate * 100, term, (loan.getAdjustableRate() != null) ? " adjustable" : "", paymentsMade,
+                        rates[0] * 100, terms[0], closingCosts[0], breakEven));
+            }
+        }
+
+        System.out.println(failures + " of " + cases + " cases disagree");
+        if(failures > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    // true when no earlier payment covers the costs and the reported one
+    // does, or nothing does and NEVER was reported
+    private static boolean agrees(AmortizationSchedule current, int paymentsMade, AmortizationSchedule offer, double closingCosts,
+            int breakEven)
+    {
+        if(closingCosts <= 0)
+        {
+            return breakEven == 0;
+        }
+
+        int horizon = Math.max(current.size() - paymentsMade, offer.size());
+        double savings = 0;
+        for(int payment = 0; payment < horizon; payment++)
+        {
+            double saved = (paymentsMade + payment < current.size()) ? current.getInterestPaid(paymentsMade + payment) : 0;
+            savings += saved - ((payment < offer.size()) ? offer.getInterestPaid(payment) : 0);
+
+            if(payment + 1 == breakEven)
+            {
+                return savings >= closingCosts - TIE;
+            }
+            if(savings >= closingCosts + TIE)
+            {
+                return false;
+            }
+        }
+        return breakEven == RefinanceAnalysis.NEVER;
+    }
+}
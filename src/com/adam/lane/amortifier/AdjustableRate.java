@@ -0,0 +1,125 @@
+package com.adam.lane.amortifier;
+
+/**
+ * Rate-change terms of an adjustable-rate loan. The loan's own rate holds for
+ * an initial fixed period, then resets every adjustment interval toward the
+ * fully indexed rate (index plus margin). A reset moves the rate by at most
+ * the periodic cap, and the rate never moves further than the lifetime cap
+ * from the initial rate or below zero. At each reset the payment is
+ * recomputed to amortize the remaining balance over the rest of the term.
+ *
+ * Rates are annual fractions, as for {@link Loan#getRate()}. Instances are
+ * immutable.
+ */
+public class AdjustableRate
+{
+    private final int mFixedPayments;
+    private final int mAdjustmentInterval;
+    private final double mIndexedRate;
+    private final double mPeriodicCap;
+    private final double mLifetimeCap;
+
+    /**
+     * @param fixedPayments
+     *            payments made at the initial rate, e.g. 60 for a 5/1 ARM
+     * @param adjustmentInterval
+     *            payments between resets, e.g. 12 for a 5/1 ARM
+     * @param indexedRate
+     *            rate the loan adjusts toward
+     * @param periodicCap
+     *            largest change at a single reset
+     * @param lifetimeCap
+     *            largest change from the initial rate
+     */
+    public AdjustableRate(int fixedPayments, int adjustmentInterval, double indexedRate, double periodicCap, double lifetimeCap)
+    {
+        if(fixedPayments < 1 || adjustmentInterval < 1)
+        {
+            throw new IllegalArgumentException("fixedPayments and adjustmentInterval must be at least 1");
+        }
+        mFixedPayments = fixedPayments;
+        mAdjustmentInterval = adjustmentInterval;
+        mIndexedRate = indexedRate;
+        mPeriodicCap = periodicCap;
+        mLifetimeCap = lifetimeCap;
+    }
+
+    /**
+     * Annual rate in effect after the given number of resets. Each reset
+     * steps toward the capped target by the periodic cap, so the rate after
+     * any number of resets is found without stepping through them.
+     *
+     * @param initialRate
+     *            the loan's rate for the fixed period
+     * @param adjustments
+     *            resets so far, 0 for the fixed period
+     */
+    public double getRate(double initialRate, int adjustments)
+    {
+        double target = Math.max(initialRate - mLifetimeCap, Math.min(mIndexedRate, initialRate + mLifetimeCap));
+        target = Math.max(0, target);
+
+        double change = Math.min(Math.abs(target - initialRate), adjustments * mPeriodicCap);
+        return (target >= initialRate) ? initialRate + change : initialRate - change;
+    }
+
+    /**
+     * Payment (0 based) of the first reset at or after the given payment.
+     */
+    public int getNextReset(int payment)
+    {
+        if(payment <= mFixedPayments)
+        {
+            return mFixedPayments;
+        }
+        int intervals = (payment - mFixedPayments + mAdjustmentInterval - 1) / mAdjustmentInterval;
+        return mFixedPayments + intervals * mAdjustmentInterval;
+    }
+
+    // getters to access data
+    public int getFixedPayments()
+    {
+        return mFixedPayments;
+    }
+
+    public int getAdjustmentInterval()
+    {
+        return mAdjustmentInterval;
+    }
+
+    public double getIndexedRate()
+    {
+        return mIndexedRate;
+    }
+
+    public double getPeriodicCap()
+    {
+        return mPeriodicCap;
+    }
+
+    public double getLifetimeCap()
+    {
+        return mLifetimeCap;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof AdjustableRate))
+        {
+            return false;
+        }
+        AdjustableRate other = (AdjustableRate) o;
+        return mFixedPayments == other.mFixedPayments && mAdjustmentInterval == other.mAdjustmentInterval
+                && Double.compare(mIndexedRate, other.mIndexedRate) == 0 && Double.compare(mPeriodicCap, other.mPeriodicCap) == 0
+                && Double.compare(mLifetimeCap, other.mLifetimeCap) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        long bits = Double.doubleToLongBits(mIndexedRate) + 31 * Double.doubleToLongBits(mPeriodicCap) + 961
+                * Double.doubleToLongBits(mLifetimeCap);
+        return 31 * (31 * mFixedPayments + mAdjustmentInterval) + (int) (bits ^ (bits >>> 32));
+    }
+}
@@ -1,12 +1,26 @@
 package com.adam.lane.amortifier;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
 import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
+import android.text.InputType;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -21,6 +35,8 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 
 public class Amortifier extends ListActivity
 {
+    private static final String TAG = "Amortifier";
+
     private static final int ACTIVITY_CREATE = 0;
     private static final int ACTIVITY_EDIT = 1;
     private static final int ACTIVITY_AMORTIZATION = 2;
@@ -29,8 +45,16 @@ public class Amortifier extends ListActivity
     private static final int DELETE_ID = Menu.FIRST + 1;
     private static final int EDIT_ID = Menu.FIRST + 2;
     private static final int RENAME_ID = Menu.FIRST + 3;
+    private static final int PORTFOLIO_ID = Menu.FIRST + 4;
+    private static final int IMPORT_ID = Menu.FIRST + 5;
+    private static final int EXPORT_ID = Menu.FIRST + 6;
+    private static final int PAYOFF_PLAN_ID = Menu.FIRST + 7;
+
+    // file on external storage used for bulk import and export
+    private static final String CSV_FILE_NAME = "amortifier-loans.csv";
 
-    private LoansDbAdapter mDbHelper;
+    private Cursor mLoansCursor;
+    private LoadLoansTask mLoadTask;
 
     /** Called when the activity is first created. */
     @Override
@@ -38,40 +62,139 @@ public class Amortifier extends ListActivity
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.loans_list);
-        mDbHelper = new LoansDbAdapter(this);
-        mDbHelper.open();
+
+        // create add button and add click listener
+        Button addButton = (Button) findViewById(R.id.AddButton);
+        addButton.setOnClickListener(new View.OnClickListener()
+        {
+            public void onClick(View v)
+            {
+                showNewLoanDialog();
+            }
+        });
 
         fillData();
 
         registerForContextMenu(getListView());
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        if(mLoadTask != null)
+        {
+            mLoadTask.cancel(false);
+        }
+        super.onDestroy();
+    }
+
+    private LoansDbAdapter getLoansDb()
+    {
+        return ((AmortifierApplication) getApplication()).getLoansDb();
+    }
+
+    // the list is queried in the background; the database may still be
+    // opening when the activity is first created
     private void fillData()
     {
-        Cursor notesCursor = mDbHelper.fetchAllLoans();
-        startManagingCursor(notesCursor);
+        if(mLoadTask != null)
+        {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadLoansTask();
+        mLoadTask.execute();
+    }
 
-        // Create an array to specify the fields we want to display in the list
-        // (only TITLE)
-        String[] from = new String[] { LoansDbAdapter.KEY_TITLE };
+    private class LoadLoansTask extends AsyncTask<Void, Void, Cursor>
+    {
+        // the cursor handed out by doInBackground, closed here if the task is
+        // cancelled before onPostExecute takes it. Before API 11 onCancelled
+        // can even run while doInBackground is still querying, so both sides
+        // hand over under the lock
+        private Cursor mCursor;
+        private boolean mCancelled;
+
+        @Override
+        protected Cursor doInBackground(Void... params)
+        {
+            Cursor loans = getLoansDb().fetchAllLoans();
 
-        // and an array of the fields we want to bind those fields to (in this
-        // case just text1)
-        int[] to = new int[] { R.id.text1 };
+            // run the query here rather than on the first bind
+            loans.getCount();
+            synchronized(this)
+            {
+                if(mCancelled || isCancelled())
+                {
+                    loans.close();
+                    return null;
+                }
+                mCursor = loans;
+            }
+            return loans;
+        }
 
-        // Now create a simple cursor adapter and set it to display
-        SimpleCursorAdapter notes = new SimpleCursorAdapter(this, R.layout.loans_row, notesCursor, from, to);
-        setListAdapter(notes);
+        @Override
+        protected void onCancelled()
+        {
+            synchronized(this)
+            {
+                mCancelled = true;
+                if(mCursor != null)
+                {
+                    mCursor.close();
+                    mCursor = null;
+                }
+            }
+        }
 
-        // create add button and add click listener
-        Button addButton = (Button) findViewById(R.id.AddButton);
-        addButton.setOnClickListener(new View.OnClickListener()
+        @Override
+        protected void onPostExecute(Cursor notesCursor)
         {
-            public void onClick(View v)
+            synchronized(this)
             {
-                showNewLoanDialog();
+                // cancelled after the result was posted; the cursor is
+                // closed here or already was by onCancelled
+                if(mCancelled || isCancelled())
+                {
+                    if(mCursor != null)
+                    {
+                        mCursor.close();
+                        mCursor = null;
+                    }
+                    return;
+                }
+                mCursor = null;
             }
-        });
+
+            mLoadTask = null;
+            if(isFinishing())
+            {
+                notesCursor.close();
+                return;
+            }
+
+            Cursor oldCursor = mLoansCursor;
+            mLoansCursor = notesCursor;
+            startManagingCursor(notesCursor);
+
+            // Create an array to specify the fields we want to display in the
+            // list (only TITLE)
+            String[] from = new String[] { LoansDbAdapter.KEY_TITLE };
+
+            // and an array of the fields we want to bind those fields to (in
+            // this case just text1)
+            int[] to = new int[] { R.id.text1 };
+
+            // Now create a simple cursor adapter and set it to display
+            SimpleCursorAdapter notes = new SimpleCursorAdapter(Amortifier.this, R.layout.loans_row, notesCursor, from, to);
+            setListAdapter(notes);
+
+            if(oldCursor != null)
+            {
+                stopManagingCursor(oldCursor);
+                oldCursor.close();
+            }
+        }
     }
 
     @Override
@@ -79,6 +202,10 @@ public class Amortifier extends ListActivity
     {
         super.onCreateOptionsMenu(menu);
         menu.add(0, INSERT_ID, 0, R.string.menu_insert);
+        menu.add(0, PORTFOLIO_ID, 0, R.string.menu_portfolio);
+        menu.add(0, PAYOFF_PLAN_ID, 0, R.string.menu_payoff_plan);
+        menu.add(0, IMPORT_ID, 0, R.string.menu_import);
+        menu.add(0, EXPORT_ID, 0, R.string.menu_export);
         return true;
     }
 
@@ -90,6 +217,24 @@ public class Amortifier extends ListActivity
             case INSERT_ID:
                 showNewLoanDialog();
                 return true;
+            case PORTFOLIO_ID:
+                new PortfolioTask().execute();
+                return true;
+            case PAYOFF_PLAN_ID:
+                askPayoffBudget();
+                return true;
+            case IMPORT_ID:
+                if(isStorageMounted())
+                {
+                    new ImportTask().execute(getCsvFile());
+                }
+                return true;
+            case EXPORT_ID:
+                if(isStorageMounted())
+                {
+                    new ExportTask().execute(getCsvFile());
+                }
+                return true;
         }
 
         return super.onMenuItemSelected(featureId, item);
@@ -112,7 +257,7 @@ public class Amortifier extends ListActivity
         switch(item.getItemId())
         {
             case DELETE_ID:
-                mDbHelper.deleteLoan(info.id);
+                getLoansDb().deleteLoan(info.id);
                 fillData();
                 return true;
             case EDIT_ID:
@@ -183,7 +328,7 @@ public class Amortifier extends ListActivity
         alert.setTitle(R.string.rename_loan);
         alert.setMessage(R.string.enter_new_loan_name);
 
-        final Cursor note = mDbHelper.fetchLoan(dbRow);
+        final Cursor note = getLoansDb().fetchLoan(dbRow);
         startManagingCursor(note);
         String name = note.getString(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_TITLE));
 
@@ -201,7 +346,7 @@ public class Amortifier extends ListActivity
                 String value = input.getText().toString();
                 if(value.length() != 0)
                 {
-                    mDbHelper.renameLoan(dbRow, value);
+                    getLoansDb().renameLoan(dbRow, value);
                     fillData();
                 }
                 else
@@ -226,6 +371,283 @@ public class Amortifier extends ListActivity
         alert.show();
     }
 
+    // totals every stored loan in the background, then shows them
+    private class PortfolioTask extends AsyncTask<Void, Void, LoanPortfolio.Totals>
+    {
+        @Override
+        protected LoanPortfolio.Totals doInBackground(Void... params)
+        {
+            LoansDbAdapter loansDb = getLoansDb();
+            Cursor loans = loansDb.fetchAllLoans();
+            Cursor prepayments = loansDb.fetchAllPrepayments();
+            try
+            {
+                return LoanPortfolio.compute(loans, prepayments);
+            }
+            finally
+            {
+                prepayments.close();
+                loans.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(LoanPortfolio.Totals totals)
+        {
+            // interrupted part way, there is nothing complete to show
+            if(totals == null)
+            {
+                return;
+            }
+
+            MoneyFormatter currencyFormatter = MoneyFormatter.getInstance();
+
+            AlertDialog.Builder alert = new AlertDialog.Builder(Amortifier.this);
+            alert.setTitle(R.string.portfolio);
+            alert.setMessage(getString(R.string.portfolio_summary, totals.getLoanCount(), currencyFormatter.format(totals.getMonthlyPayment()),
+                    currencyFormatter.format(totals.getTotalInterestPaid()), totals.getLatestPayoff()));
+            alert.setPositiveButton(R.string.ok, null);
+            alert.show();
+        }
+    }
+
+    private void askPayoffBudget()
+    {
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+
+        alert.setTitle(R.string.payoff_plan);
+        alert.setMessage(R.string.enter_payoff_budget);
+
+        // Set an EditText view to get user input
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+        alert.setView(input);
+
+        alert.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                try
+                {
+                    String value = input.getText().toString();
+                    if(value.length() != 0)
+                    {
+                        new PayoffPlanTask(Double.parseDouble(value)).execute();
+                    }
+                }
+                catch(NumberFormatException e)
+                {
+                }
+            }
+        });
+
+        alert.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                // Canceled.
+                return;
+            }
+        });
+
+        alert.show();
+    }
+
+    // plans every strategy for the stored loans in the background, then
+    // shows how they compare
+    private class PayoffPlanTask extends AsyncTask<Void, Void, PayoffPlanner.Plan[]>
+    {
+        private final double mBudget;
+        private double mMinimumBudget;
+
+        PayoffPlanTask(double budget)
+        {
+            mBudget = budget;
+        }
+
+        @Override
+        protected PayoffPlanner.Plan[] doInBackground(Void... params)
+        {
+            PayoffPlanner planner;
+            Cursor loans = getLoansDb().fetchAllLoans();
+            try
+            {
+                planner = PayoffPlanner.read(loans);
+            }
+            finally
+            {
+                loans.close();
+            }
+
+            mMinimumBudget = planner.getMinimumBudget();
+            if(mBudget < mMinimumBudget)
+            {
+                return null;
+            }
+
+            // the custom order is the order the loans are listed in
+            int[] listOrder = new int[planner.size()];
+            for(int i = 0; i < listOrder.length; i++)
+            {
+                listOrder[i] = i;
+            }
+            return planner.compare(mBudget, listOrder);
+        }
+
+        @Override
+        protected void onPostExecute(PayoffPlanner.Plan[] plans)
+        {
+            MoneyFormatter currencyFormatter = MoneyFormatter.getInstance();
+
+            AlertDialog.Builder alert = new AlertDialog.Builder(Amortifier.this);
+            alert.setTitle(R.string.payoff_plan);
+            if(plans == null)
+            {
+                alert.setMessage(getString(R.string.payoff_budget_too_low, currencyFormatter.format(mMinimumBudget)));
+            }
+            else
+            {
+                String[] names = getResources().getStringArray(R.array.payoffStrategies);
+                StringBuilder message = new StringBuilder();
+                for(PayoffPlanner.Plan plan : plans)
+                {
+                    if(message.length() != 0)
+                    {
+                        message.append("\n\n");
+                    }
+                    String name = names[plan.getStrategy()];
+                    if(plan.getMonths() == PayoffPlanner.NEVER)
+                    {
+                        message.append(getString(R.string.payoff_plan_never, name));
+                    }
+                    else
+                    {
+                        message.append(getString(R.string.payoff_plan_result, name, plan.getMonths(),
+                                currencyFormatter.format(plan.getTotalInterestPaid())));
+                    }
+                }
+                alert.setMessage(message);
+            }
+            alert.setPositiveButton(R.string.ok, null);
+            alert.show();
+        }
+    }
+
+    private static File getCsvFile()
+    {
+        return new File(Environment.getExternalStorageDirectory(), CSV_FILE_NAME);
+    }
+
+    private boolean isStorageMounted()
+    {
+        if(Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()))
+        {
+            return true;
+        }
+        Toast.makeText(getApplicationContext(), R.string.no_storage, Toast.LENGTH_SHORT).show();
+        return false;
+    }
+
+    // reads loans from the CSV file in the background, showing a running count
+    private class ImportTask extends AsyncTask<File, Integer, Integer>
+    {
+        private ProgressDialog mProgress;
+        private String mPath;
+        private int mSkipped;
+
+        @Override
+        protected void onPreExecute()
+        {
+            mProgress = new ProgressDialog(Amortifier.this);
+            mProgress.setIndeterminate(true);
+            mProgress.setCancelable(false);
+            mProgress.setMessage(getString(R.string.importing));
+            mProgress.show();
+        }
+
+        @Override
+        protected Integer doInBackground(File... files)
+        {
+            mPath = files[0].getPath();
+            try
+            {
+                Reader reader = new InputStreamReader(new FileInputStream(files[0]), "UTF-8");
+                try
+                {
+                    return getLoansDb().importLoans(reader, new LoansDbAdapter.ImportListener()
+                    {
+                        public void onImportProgress(int imported, int skipped)
+                        {
+                            mSkipped = skipped;
+                            publishProgress(imported);
+                        }
+                    });
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+            catch(IOException e)
+            {
+                Log.e(TAG, "Error importing loans", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... imported)
+        {
+            mProgress.setMessage(getString(R.string.import_progress, imported[0]));
+        }
+
+        @Override
+        protected void onPostExecute(Integer imported)
+        {
+            mProgress.dismiss();
+
+            String message = (imported == null) ? getString(R.string.import_failed, mPath) : getString(R.string.import_done, imported, mSkipped);
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+            fillData();
+        }
+    }
+
+    // writes every loan to the CSV file in the background
+    private class ExportTask extends AsyncTask<File, Void, Integer>
+    {
+        private String mPath;
+
+        @Override
+        protected Integer doInBackground(File... files)
+        {
+            mPath = files[0].getPath();
+            try
+            {
+                Writer writer = new OutputStreamWriter(new FileOutputStream(files[0]), "UTF-8");
+                try
+                {
+                    return getLoansDb().exportLoans(writer);
+                }
+                finally
+                {
+                    writer.close();
+                }
+            }
+            catch(IOException e)
+            {
+                Log.e(TAG, "Error exporting loans", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer exported)
+        {
+            String message = (exported == null) ? getString(R.string.export_failed, mPath) : getString(R.string.export_done, exported, mPath);
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+        }
+    }
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id)
     {
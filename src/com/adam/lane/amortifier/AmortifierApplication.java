@@ -0,0 +1,50 @@
+package com.adam.lane.amortifier;
+
+import android.app.Application;
+
+/**
+ * Process-wide state shared by the activities. Holds the single open loans
+ * database, which is opened on a background thread as soon as the process
+ * starts and stays open for the life of the process.
+ */
+public class AmortifierApplication extends Application
+{
+    private LoansDbAdapter mLoansDb;
+
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+
+        // opening may create or upgrade the database, keep that off the
+        // main thread; the first activity waits in getLoansDb if it is early
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                getLoansDb();
+            }
+        }, "OpenLoansDb").start();
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+        ScheduleCache.clear();
+    }
+
+    /**
+     * Return the shared loans database, opening it if needed. This can block
+     * while the database is opened, so first use belongs on a background
+     * thread.
+     */
+    public synchronized LoansDbAdapter getLoansDb()
+    {
+        if(mLoansDb == null)
+        {
+            mLoansDb = new LoansDbAdapter(this).open();
+        }
+        return mLoansDb;
+    }
+}
@@ -1,47 +1,70 @@
 package com.adam.lane.amortifier;
 
-import java.text.NumberFormat;
-import java.util.ArrayList;
-import java.util.Locale;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
 import android.text.InputType;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.adam.lane.amortifier.Loan.AmortizationMonth;
-
 public class AmortizationActivity extends ListActivity
 {
+    private static final String TAG = "AmortizationActivity";
+
     private static final int SCROLL_TO_ID = Menu.FIRST;
+    private static final int PAYOFF_ID = Menu.FIRST + 1;
+    private static final int WHAT_IF_ID = Menu.FIRST + 2;
+    private static final int EXPORT_ID = Menu.FIRST + 3;
+    private static final int YEAR_SUMMARY_ID = Menu.FIRST + 4;
+    private static final int GROUP_ROWS_ID = Menu.FIRST + 5;
+    private static final int REFINANCE_ID = Menu.FIRST + 6;
+
+    // rows per year for each entry of R.array.groupRowsOptions
+    private static final int[] GROUP_ROWS_PERIODS = new int[] { PagedAmortizationSchedule.EVERY_PAYMENT,
+            AmortizationTableBaseAdapter.QUARTERLY, AmortizationTableBaseAdapter.YEARLY };
+
+    private static final String KEY_PERIODS_PER_YEAR = "periodsPerYear";
+
+    // range of extra monthly payments on the what-if curve
+    private static final double WHAT_IF_MAX_EXTRA = 2000;
+    private static final double WHAT_IF_STEP = 25;
 
     private Loan mLoan;
+    private PagedAmortizationSchedule mSchedule;
+    private int mPeriodsPerYear = PagedAmortizationSchedule.EVERY_PAYMENT;
     private Long mRowId;
-    private LoansDbAdapter mDbHelper;
+    private LoadScheduleTask mLoadTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
 
-        // open DB connection
-        mDbHelper = new LoansDbAdapter(this);
-        mDbHelper.open();
-
         setContentView(R.layout.amortization_table);
         setTitle(R.string.amort_schedule);
 
         // get rowId from bundle
         mRowId = (savedInstanceState == null) ? null : (Long) savedInstanceState.getSerializable(LoansDbAdapter.KEY_ROWID);
+        if(savedInstanceState != null)
+        {
+            mPeriodsPerYear = savedInstanceState.getInt(KEY_PERIODS_PER_YEAR, PagedAmortizationSchedule.EVERY_PAYMENT);
+        }
 
         if(mRowId == null)
         {
@@ -50,80 +73,205 @@ public class AmortizationActivity extends ListActivity
             mRowId = 0 == mRowId ? null : mRowId;
         }
 
-        // set title string
-        Cursor note = mDbHelper.fetchLoan(mRowId);
-        startManagingCursor(note);
-        String name = note.getString(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_TITLE));
-        TextView loanLabel = (TextView) findViewById(R.id.loanNameLabel);
-        loanLabel.setText(name);
-
         populateFields();
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        // drop any computation still in flight, including on rotation
+        if(mLoadTask != null)
+        {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+
+        super.onDestroy();
+    }
+
     private void populateFields()
     {
-        try
+        if(mRowId != null)
+        {
+            mLoadTask = new LoadScheduleTask();
+            mLoadTask.execute(mRowId);
+        }
+    }
+
+    // header values, published to the UI thread ahead of the rows
+    private static class ScheduleHeader
+    {
+        String name;
+        double principal;
+        double totalPaid;
+        double totalInterestPaid;
+    }
+
+    /**
+     * Reads the loan and computes the schedule off the UI thread. The header
+     * is published first; the first page of rows follows with the adapter.
+     */
+    private class LoadScheduleTask extends AsyncTask<Long, ScheduleHeader, PagedAmortizationSchedule>
+    {
+        private boolean mInvalidLoan;
+
+        @Override
+        protected PagedAmortizationSchedule doInBackground(Long... rowIds)
         {
-            if(mRowId != null)
+            ScheduleHeader header = new ScheduleHeader();
+            double principal;
+            double rate;
+            double term;
+            double extra;
+            int paymentFrequency;
+            AdjustableRate adjustableRate;
+            PrepaymentEvent[] prepayments;
+            boolean hasTotals = false;
+
+            LoansDbAdapter loansDb = ((AmortifierApplication) getApplication()).getLoansDb();
+            Cursor note = loansDb.fetchLoan(rowIds[0]);
+            try
             {
-                Cursor note = mDbHelper.fetchLoan(mRowId);
-                startManagingCursor(note);
+                header.name = note.getString(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_TITLE));
 
-                String extraString = note.getString(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_EXTRA_MONTHLY_PAYMENT));
-                if(extraString.length() == 0)
+                // get loan from database
+                principal = LoansDbAdapter.fromCents(note.getLong(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_PRINCIPAL)));
+                rate = note.getDouble(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_RATE)) / 100;
+                term = note.getDouble(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_TERM));
+                extra = LoansDbAdapter.fromCents(note.getLong(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_EXTRA_MONTHLY_PAYMENT)));
+                paymentFrequency = LoansDbAdapter.getPaymentFrequency(note);
+                adjustableRate = LoansDbAdapter.getAdjustableRate(note);
+
+                // values that did not convert during an upgrade are stored as 0
+                if(term <= 0)
                 {
-                    extraString = "0";
+                    mInvalidLoan = true;
+                    return null;
                 }
 
-                // get loan from database
-                Double principal = Double.parseDouble(note.getString(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_PRINCIPAL)));
-                Double rate = Double.parseDouble(note.getString(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_RATE))) / 100;
-                Double term = Double.parseDouble(note.getString(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_TERM)));
-                Double extra = Double.parseDouble(extraString);
+                // totals are stored with the loan when it is saved
+                int totalPaidColumn = note.getColumnIndexOrThrow(LoansDbAdapter.KEY_TOTAL_PAID);
+                if(!note.isNull(totalPaidColumn))
+                {
+                    header.totalPaid = note.getDouble(totalPaidColumn);
+                    header.totalInterestPaid = note.getDouble(note.getColumnIndexOrThrow(LoansDbAdapter.KEY_TOTAL_INTEREST));
+                    hasTotals = true;
+                }
+            }
+            finally
+            {
+                note.close();
+            }
+            prepayments = loansDb.fetchPrepayments(rowIds[0]);
 
-                // create loan
-                mLoan = new Loan(principal, rate, term, extra);
+            if(isCancelled())
+            {
+                return null;
+            }
 
-                // build list view
-                ArrayList<AmortizationMonth> amortTable = mLoan.getAmortizationTable();
-                ListView listview = getListView();
-                listview.setAdapter(new AmortizationTableBaseAdapter(this, amortTable));
+            // rows saved without totals get them from the closed form
+            if(!hasTotals)
+            {
+                LoanSummary summary = ScheduleCache.getSummary(principal, rate, term, extra, paymentFrequency, adjustableRate, prepayments);
+                header.totalPaid = summary.getTotalPaid();
+                header.totalInterestPaid = summary.getTotalInterestPaid();
+            }
+            header.principal = principal;
+            publishProgress(header);
 
-                // build header strings
-                TextView totalPaidLabel = (TextView) findViewById(R.id.totalPaidLabel);
-                TextView totalInterestPaidLabel = (TextView) findViewById(R.id.totalInterestPaidLabel);
-                TextView loanAmountLabel = (TextView) findViewById(R.id.loanAmountLabel);
+            // rows are computed a page at a time as the list scrolls; have
+            // the first page ready so the list can draw straight away
+            PagedAmortizationSchedule schedule = ScheduleCache.getSchedule(principal, rate, term, extra, paymentFrequency, adjustableRate,
+                    prepayments);
+            schedule.prefetch(0);
 
-                double total = 0;
-                double interest = 0;
+            return isCancelled() ? null : schedule;
+        }
 
-                for(AmortizationMonth amortizationMonth : amortTable)
-                {
-                    total += amortizationMonth.getTotalPaid();
-                    interest += amortizationMonth.getInterestPaid();
-                }
+        @Override
+        protected void onProgressUpdate(ScheduleHeader... headers)
+        {
+            ScheduleHeader header = headers[0];
+
+            // build header strings
+            TextView loanLabel = (TextView) findViewById(R.id.loanNameLabel);
+            TextView totalPaidLabel = (TextView) findViewById(R.id.totalPaidLabel);
+            TextView totalInterestPaidLabel = (TextView) findViewById(R.id.totalInterestPaidLabel);
+            TextView loanAmountLabel = (TextView) findViewById(R.id.loanAmountLabel);
+
+            // format string
+            MoneyFormatter currencyFormatter = MoneyFormatter.getInstance();
+            loanLabel.setText(header.name);
+            totalPaidLabel.setText(currencyFormatter.format(header.totalPaid));
+            totalInterestPaidLabel.setText(currencyFormatter.format(header.totalInterestPaid));
+            loanAmountLabel.setText(currencyFormatter.format(header.principal));
+        }
+
+        @Override
+        protected void onPostExecute(PagedAmortizationSchedule schedule)
+        {
+            mLoadTask = null;
+
+            if(mInvalidLoan)
+            {
+                // create the toast
+                Context context = getApplicationContext();
+                int duration = Toast.LENGTH_LONG;
+                Toast.makeText(context, R.string.invalid_loan, duration).show();
+                return;
+            }
 
-                // format string
-                Locale currentLocale = Locale.getDefault();
-                NumberFormat currencyFormatter = NumberFormat.getCurrencyInstance(currentLocale);
-                totalPaidLabel.setText(currencyFormatter.format(total));
-                totalInterestPaidLabel.setText(currencyFormatter.format(interest));
-                loanAmountLabel.setText(currencyFormatter.format(mLoan.getPrincipal()));
+            if(schedule != null)
+            {
+                mLoan = schedule.getLoan();
+                mSchedule = schedule;
+                showRows();
             }
         }
-        catch(NumberFormatException e)
+    }
+
+    // build list view, a row per payment or rolled up by period
+    private void showRows()
+    {
+        PagedAmortizationSchedule rows = (mPeriodsPerYear == PagedAmortizationSchedule.EVERY_PAYMENT) ? mSchedule
+                : new PagedAmortizationSchedule(mLoan, mPeriodsPerYear);
+        ListView listview = getListView();
+        listview.setAdapter(new AmortizationTableBaseAdapter(this, rows));
+    }
+
+    private void askGroupRows()
+    {
+        int checked = 0;
+        for(int i = 0; i < GROUP_ROWS_PERIODS.length; i++)
         {
-            // create the toast
-            Context context = getApplicationContext();
-            int duration = Toast.LENGTH_LONG;
-            Toast.makeText(context, R.string.invalid_loan, duration).show();
+            if(GROUP_ROWS_PERIODS[i] == mPeriodsPerYear)
+            {
+                checked = i;
+            }
         }
+
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.group_rows);
+        alert.setSingleChoiceItems(R.array.groupRowsOptions, checked, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int which)
+            {
+                dialog.dismiss();
+                mPeriodsPerYear = GROUP_ROWS_PERIODS[which];
+                if(mSchedule != null)
+                {
+                    showRows();
+                }
+            }
+        });
+        alert.show();
     }
 
     @Override
     protected void onSaveInstanceState(Bundle outState)
     {
         super.onSaveInstanceState(outState);
+        outState.putInt(KEY_PERIODS_PER_YEAR, mPeriodsPerYear);
     }
 
     @Override
@@ -137,6 +285,12 @@ public class AmortizationActivity extends ListActivity
     {
         super.onCreateOptionsMenu(menu);
         menu.add(0, SCROLL_TO_ID, 0, R.string.menu_scroll_to);
+        menu.add(0, PAYOFF_ID, 0, R.string.menu_payoff);
+        menu.add(0, WHAT_IF_ID, 0, R.string.menu_what_if);
+        menu.add(0, REFINANCE_ID, 0, R.string.menu_refinance);
+        menu.add(0, GROUP_ROWS_ID, 0, R.string.menu_group_rows);
+        menu.add(0, YEAR_SUMMARY_ID, 0, R.string.menu_year_summary);
+        menu.add(0, EXPORT_ID, 0, R.string.menu_export_schedule);
         return true;
     }
 
@@ -148,6 +302,24 @@ public class AmortizationActivity extends ListActivity
             case SCROLL_TO_ID:
                 askScrollToPayment();
                 return true;
+            case PAYOFF_ID:
+                askPayoffPayments();
+                return true;
+            case WHAT_IF_ID:
+                showWhatIf();
+                return true;
+            case EXPORT_ID:
+                exportSchedule();
+                return true;
+            case YEAR_SUMMARY_ID:
+                askYearSummary();
+                return true;
+            case GROUP_ROWS_ID:
+                askGroupRows();
+                return true;
+            case REFINANCE_ID:
+                askRefinance();
+                return true;
         }
 
         return super.onMenuItemSelected(featureId, item);
@@ -195,9 +367,380 @@ public class AmortizationActivity extends ListActivity
         alert.show();
     }
 
+    private void askPayoffPayments()
+    {
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+
+        alert.setTitle(R.string.payoff);
+        alert.setMessage(R.string.enter_payoff_payments);
+
+        // Set an EditText view to get user input
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        alert.setView(input);
+
+        alert.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                try
+                {
+                    String value = input.getText().toString();
+                    if(value.length() != 0)
+                    {
+                        showPayoffExtra(Integer.parseInt(value));
+                    }
+                }
+                catch(NumberFormatException e)
+                {
+                }
+            }
+        });
+
+        alert.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                // Canceled.
+                return;
+            }
+        });
+
+        alert.show();
+    }
+
+    private void askYearSummary()
+    {
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+
+        alert.setTitle(R.string.year_summary);
+        alert.setMessage(R.string.enter_year);
+
+        // Set an EditText view to get user input
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        alert.setView(input);
+
+        alert.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                try
+                {
+                    String value = input.getText().toString();
+                    if(value.length() != 0)
+                    {
+                        showYearSummary(Integer.parseInt(value));
+                    }
+                }
+                catch(NumberFormatException e)
+                {
+                }
+            }
+        });
+
+        alert.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                // Canceled.
+                return;
+            }
+        });
+
+        alert.show();
+    }
+
+    private void showYearSummary(int year)
+    {
+        if(mLoan == null || year < 1)
+        {
+            return;
+        }
+
+        // every figure is a difference of running totals, no rows are visited
+        int first = Math.min((year - 1) * mLoan.getPaymentsPerYear(), mLoan.getPaymentCount());
+        int end = Math.min(year * mLoan.getPaymentsPerYear(), mLoan.getPaymentCount());
+        MoneyFormatter currencyFormatter = MoneyFormatter.getInstance();
+
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.year_summary);
+        alert.setMessage(getString(R.string.year_summary_text, year, currencyFormatter.format(mLoan.getInterestPaidBetween(first, end)),
+                currencyFormatter.format(mLoan.getPrincipalPaidBetween(first, end) + mLoan.getAdditionalPrincipalPaidBetween(first, end)),
+                currencyFormatter.format(mLoan.getCumulativeTotalPaid(end)), currencyFormatter.format(mLoan.getCumulativeInterestPaid(end)),
+                currencyFormatter.format(mLoan.getBalanceAfter(end))));
+        alert.setPositiveButton(R.string.ok, null);
+        alert.show();
+    }
+
+    private void showPayoffExtra(int payments)
+    {
+        if(mLoan == null || payments < 1)
+        {
+            return;
+        }
+
+        // the solver only probes the closed form, so it is quick enough to
+        // run right here
+        double extra = mLoan.getExtraPaymentForPayoff(payments);
+
+        MoneyFormatter currencyFormatter = MoneyFormatter.getInstance();
+
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.payoff);
+        alert.setMessage(getString(R.string.payoff_extra, currencyFormatter.format(extra), payments));
+        alert.setPositiveButton(R.string.ok, null);
+        alert.show();
+    }
+
+    private void showWhatIf()
+    {
+        if(mLoan == null)
+        {
+            return;
+        }
+
+        // the whole curve is one closed-form batch
+        final ExtraPaymentSweep sweep = new ExtraPaymentSweep(mLoan, WHAT_IF_MAX_EXTRA, WHAT_IF_STEP);
+
+        View view = getLayoutInflater().inflate(R.layout.extra_sweep, null);
+        final SweepCurveView curve = (SweepCurveView) view.findViewById(R.id.sweepCurve);
+        final TextView label = (TextView) view.findViewById(R.id.sweepLabel);
+        SeekBar seekBar = (SeekBar) view.findViewById(R.id.sweepSeekBar);
+
+        final MoneyFormatter currencyFormatter = MoneyFormatter.getInstance();
+
+        curve.setSweep(sweep);
+        label.setText(getString(R.string.what_if_point, currencyFormatter.format(sweep.getExtra(0)), sweep.getPaymentCount(0),
+                currencyFormatter.format(sweep.getTotalInterest(0))));
+
+        seekBar.setMax(sweep.size() - 1);
+        seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener()
+        {
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+            {
+                curve.setSelected(progress);
+                label.setText(getString(R.string.what_if_point, currencyFormatter.format(sweep.getExtra(progress)),
+                        sweep.getPaymentCount(progress), currencyFormatter.format(sweep.getTotalInterest(progress))));
+            }
+
+            public void onStartTrackingTouch(SeekBar seekBar)
+            {
+            }
+
+            public void onStopTrackingTouch(SeekBar seekBar)
+            {
+            }
+        });
+
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.what_if);
+        alert.setView(view);
+        alert.setPositiveButton(R.string.ok, null);
+        alert.show();
+    }
+
+    private void askRefinance()
+    {
+        if(mLoan == null)
+        {
+            return;
+        }
+
+        View view = getLayoutInflater().inflate(R.layout.refinance, null);
+        final EditText paymentsMadeText = (EditText) view.findViewById(R.id.refinancePaymentsMadeEditText);
+        final EditText ratesText = (EditText) view.findViewById(R.id.refinanceRatesEditText);
+        final EditText termsText = (EditText) view.findViewById(R.id.refinanceTermsEditText);
+        final EditText closingCostsText = (EditText) view.findViewById(R.id.refinanceClosingCostsEditText);
+
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.refinance);
+        alert.setView(view);
+
+        alert.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                try
+                {
+                    String paymentsMade = paymentsMadeText.getText().toString();
+                    String closingCosts = closingCostsText.getText().toString();
+                    double[] rates = parseList(ratesText.getText().toString());
+                    double[] terms = parseList(termsText.getText().toString());
+                    showRefinance(paymentsMade.length() == 0 ? 0 : Integer.parseInt(paymentsMade), rates, terms,
+                            closingCosts.length() == 0 ? 0 : Double.parseDouble(closingCosts));
+                }
+                catch(NumberFormatException e)
+                {
+                }
+            }
+        });
+
+        alert.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener()
+        {
+            public void onClick(DialogInterface dialog, int whichButton)
+            {
+                // Canceled.
+                return;
+            }
+        });
+
+        alert.show();
+    }
+
+    // comma separated numbers, blank entries are skipped
+    private static double[] parseList(String text)
+    {
+        String[] parts = text.split(",");
+        double[] values = new double[parts.length];
+        int count = 0;
+        for(String part : parts)
+        {
+            part = part.trim();
+            if(part.length() != 0)
+            {
+                values[count++] = Double.parseDouble(part);
+            }
+        }
+
+        double[] result = new double[count];
+        System.arraycopy(values, 0, result, 0, count);
+        return result;
+    }
+
+    private void showRefinance(int paymentsMade, double[] rates, double[] terms, double closingCosts)
+    {
+        if(mLoan == null || rates.length == 0 || terms.length == 0)
+        {
+            return;
+        }
+
+        // every rate at every term, rates are entered in percent
+        int count = rates.length * terms.length;
+        double[] offerRates = new double[count];
+        double[] offerTerms = new double[count];
+        double[] offerCosts = new double[count];
+        for(int i = 0; i < count; i++)
+        {
+            offerRates[i] = rates[i / terms.length] / 100;
+            offerTerms[i] = terms[i % terms.length];
+            offerCosts[i] = closingCosts;
+        }
+
+        // a fixed-rate loan is bisected over the closed form; one whose rate
+        // resets or that has lump sums is scanned a payment at a time, still
+        // only closed-form lookups, at most a few thousand per offer, so
+        // either way it is quick enough to run right here
+        RefinanceAnalysis analysis = new RefinanceAnalysis(mLoan, paymentsMade, offerRates, offerTerms, offerCosts, count);
+
+        MoneyFormatter currencyFormatter = MoneyFormatter.getInstance();
+        StringBuilder message = new StringBuilder();
+        message.append(getString(R.string.refinance_current, currencyFormatter.format(analysis.getBalance()),
+                currencyFormatter.format(analysis.getRemainingInterest())));
+
+        int best = analysis.getBestOffer();
+        message.append("\n\n").append(getString(R.string.refinance_best, analysis.getRate(best) * 100, (int) analysis.getTerm(best)));
+
+        for(int i = 0; i < analysis.size(); i++)
+        {
+            double rate = analysis.getRate(i) * 100;
+            int term = (int) analysis.getTerm(i);
+            String payment = currencyFormatter.format(analysis.getPayment(i));
+            String savings = currencyFormatter.format(analysis.getNetSavings(i));
+
+            message.append("\n\n");
+            if(analysis.getBreakEven(i) == RefinanceAnalysis.NEVER)
+            {
+                message.append(getString(R.string.refinance_offer_never, rate, term, payment, savings));
+            }
+            else
+            {
+                message.append(getString(R.string.refinance_offer, rate, term, payment, savings, analysis.getBreakEven(i)));
+            }
+        }
+
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle(R.string.refinance);
+        alert.setMessage(message);
+        alert.setPositiveButton(R.string.ok, null);
+        alert.show();
+    }
+
+    private void exportSchedule()
+    {
+        if(mLoan == null)
+        {
+            return;
+        }
+        if(!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()))
+        {
+            Toast.makeText(getApplicationContext(), R.string.no_storage, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // export from a copy, the cached loan is shared with the table
+        Loan loan = new Loan(mLoan.getPrincipal(), mLoan.getRate(), mLoan.getTerm(), mLoan.getExtraPayment());
+        loan.setCalculationMode(mLoan.getCalculationMode());
+        loan.setPaymentFrequency(mLoan.getPaymentFrequency());
+        loan.setAdjustableRate(mLoan.getAdjustableRate());
+        loan.setPrepayments(mLoan.getPrepayments());
+        new ExportScheduleTask(loan).execute(new File(Environment.getExternalStorageDirectory(), "amortifier-schedule-" + mRowId + ".csv"));
+    }
+
+    // writes the table to a CSV file in the background
+    private class ExportScheduleTask extends AsyncTask<File, Void, Integer>
+    {
+        private final Loan mExportLoan;
+        private String mPath;
+
+        ExportScheduleTask(Loan loan)
+        {
+            mExportLoan = loan;
+        }
+
+        @Override
+        protected Integer doInBackground(File... files)
+        {
+            mPath = files[0].getPath();
+            try
+            {
+                FileOutputStream out = new FileOutputStream(files[0]);
+                try
+                {
+                    return new ScheduleExporter().writeCsv(mExportLoan, out.getChannel());
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            catch(IOException e)
+            {
+                Log.e(TAG, "Error exporting schedule", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer payments)
+        {
+            String message = (payments == null) ? getString(R.string.export_failed, mPath) : getString(R.string.export_schedule_done, payments,
+                    mPath);
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+        }
+    }
+
     private void scrollToPayment(int position)
     {
+        if(mLoan == null)
+        {
+            return;
+        }
+        int payment = Math.max(0, Math.min(position, mLoan.getPaymentCount()) - 1);
+
+        // with rows rolled up, go to the period holding the payment
         ListView listview = getListView();
-        listview.setSelection(position - 1);
+        listview.setSelection((mPeriodsPerYear == PagedAmortizationSchedule.EVERY_PAYMENT) ? payment : mLoan.getPeriodOf(payment,
+                mPeriodsPerYear));
     }
 }
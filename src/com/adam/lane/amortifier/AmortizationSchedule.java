@@ -0,0 +1,206 @@
+package com.adam.lane.amortifier;
+
+/**
+ * Amortization table stored column by column. Each column is a primitive
+ * array indexed by payment (0 based), so filling and reading the table never
+ * allocates a per-row object. Running totals are kept alongside the rows, so
+ * the sum over any range of rows is a subtraction.
+ */
+public class AmortizationSchedule
+{
+    // primitive columns kept per row
+    static final int COLUMN_COUNT = 9;
+
+    // rough heap cost of the object and its array headers
+    private static final int OVERHEAD_BYTES = 256;
+
+    private double[] mBalance;
+    private double[] mTotalPaid;
+    private double[] mPrincipalPaid;
+    private double[] mInterestPaid;
+    private double[] mAdditionalPrincipalPaid;
+
+    // running totals through each row, including the sums before the first row
+    private double[] mCumulativeTotalPaid;
+    private double[] mCumulativePrincipalPaid;
+    private double[] mCumulativeInterestPaid;
+    private double[] mCumulativeAdditionalPrincipalPaid;
+
+    // sums of the payments before the first row, for blocks that start part
+    // way through a loan
+    private double mTotalPaidBefore;
+    private double mPrincipalPaidBefore;
+    private double mInterestPaidBefore;
+    private double mAdditionalPrincipalPaidBefore;
+
+    private int mSize;
+
+    AmortizationSchedule(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+
+        mBalance = new double[capacity];
+        mTotalPaid = new double[capacity];
+        mPrincipalPaid = new double[capacity];
+        mInterestPaid = new double[capacity];
+        mAdditionalPrincipalPaid = new double[capacity];
+        mCumulativeTotalPaid = new double[capacity];
+        mCumulativePrincipalPaid = new double[capacity];
+        mCumulativeInterestPaid = new double[capacity];
+        mCumulativeAdditionalPrincipalPaid = new double[capacity];
+    }
+
+    /**
+     * Rough heap cost of a table with room for the given number of rows.
+     */
+    static long getByteSize(int capacity)
+    {
+        return (long) Math.max(capacity, 1) * COLUMN_COUNT * 8 + OVERHEAD_BYTES;
+    }
+
+    // rough heap cost of this table at its current capacity
+    long getByteSize()
+    {
+        return getByteSize(mBalance.length);
+    }
+
+    // append a row, growing the columns if the initial estimate was too small
+    void add(double balance, double principalPaid, double interestPaid, double additionalPrincipalPaid)
+    {
+        if(mSize == mBalance.length)
+        {
+            grow();
+        }
+
+        mBalance[mSize] = balance;
+        mPrincipalPaid[mSize] = principalPaid;
+        mInterestPaid[mSize] = interestPaid;
+        mAdditionalPrincipalPaid[mSize] = additionalPrincipalPaid;
+        mTotalPaid[mSize] = principalPaid + interestPaid + additionalPrincipalPaid;
+
+        mCumulativeTotalPaid[mSize] = getCumulativeTotalPaid(mSize - 1) + mTotalPaid[mSize];
+        mCumulativePrincipalPaid[mSize] = getCumulativePrincipalPaid(mSize - 1) + principalPaid;
+        mCumulativeInterestPaid[mSize] = getCumulativeInterestPaid(mSize - 1) + interestPaid;
+        mCumulativeAdditionalPrincipalPaid[mSize] = getCumulativeAdditionalPrincipalPaid(mSize - 1) + additionalPrincipalPaid;
+        mSize++;
+    }
+
+    // forget the rows but keep the columns for reuse
+    void clear()
+    {
+        clear(0, 0, 0, 0);
+    }
+
+    // as clear(), for a block whose first row follows payments that added up
+    // to the given sums
+    void clear(double totalPaidBefore, double principalPaidBefore, double interestPaidBefore, double additionalPrincipalPaidBefore)
+    {
+        mSize = 0;
+        mTotalPaidBefore = totalPaidBefore;
+        mPrincipalPaidBefore = principalPaidBefore;
+        mInterestPaidBefore = interestPaidBefore;
+        mAdditionalPrincipalPaidBefore = additionalPrincipalPaidBefore;
+    }
+
+    private void grow()
+    {
+        int capacity = mBalance.length * 2;
+
+        mBalance = copyOf(mBalance, capacity);
+        mTotalPaid = copyOf(mTotalPaid, capacity);
+        mPrincipalPaid = copyOf(mPrincipalPaid, capacity);
+        mInterestPaid = copyOf(mInterestPaid, capacity);
+        mAdditionalPrincipalPaid = copyOf(mAdditionalPrincipalPaid, capacity);
+        mCumulativeTotalPaid = copyOf(mCumulativeTotalPaid, capacity);
+        mCumulativePrincipalPaid = copyOf(mCumulativePrincipalPaid, capacity);
+        mCumulativeInterestPaid = copyOf(mCumulativeInterestPaid, capacity);
+        mCumulativeAdditionalPrincipalPaid = copyOf(mCumulativeAdditionalPrincipalPaid, capacity);
+    }
+
+    private static double[] copyOf(double[] source, int capacity)
+    {
+        double[] copy = new double[capacity];
+        System.arraycopy(source, 0, copy, 0, source.length);
+        return copy;
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    // getters to access data
+    public double getBalance(int payment)
+    {
+        return mBalance[payment];
+    }
+
+    public double getTotalPaid(int payment)
+    {
+        return mTotalPaid[payment];
+    }
+
+    public double getPrincipalPaid(int payment)
+    {
+        return mPrincipalPaid[payment];
+    }
+
+    public double getInterestPaid(int payment)
+    {
+        return mInterestPaid[payment];
+    }
+
+    public double getAdditionalPrincipalPaid(int payment)
+    {
+        return mAdditionalPrincipalPaid[payment];
+    }
+
+    /**
+     * Sum of the payments up to and including the given row, counting any
+     * payments before the first row. Row -1 gives the sum before the first
+     * row.
+     */
+    public double getCumulativeTotalPaid(int payment)
+    {
+        return (payment < 0) ? mTotalPaidBefore : mCumulativeTotalPaid[payment];
+    }
+
+    public double getCumulativePrincipalPaid(int payment)
+    {
+        return (payment < 0) ? mPrincipalPaidBefore : mCumulativePrincipalPaid[payment];
+    }
+
+    public double getCumulativeInterestPaid(int payment)
+    {
+        return (payment < 0) ? mInterestPaidBefore : mCumulativeInterestPaid[payment];
+    }
+
+    public double getCumulativeAdditionalPrincipalPaid(int payment)
+    {
+        return (payment < 0) ? mAdditionalPrincipalPaidBefore : mCumulativeAdditionalPrincipalPaid[payment];
+    }
+
+    /**
+     * Sum of the payments in rows {@code first} (inclusive) to {@code end}
+     * (exclusive).
+     */
+    public double getTotalPaidBetween(int first, int end)
+    {
+        return getCumulativeTotalPaid(end - 1) - getCumulativeTotalPaid(first - 1);
+    }
+
+    public double getPrincipalPaidBetween(int first, int end)
+    {
+        return getCumulativePrincipalPaid(end - 1) - getCumulativePrincipalPaid(first - 1);
+    }
+
+    public double getInterestPaidBetween(int first, int end)
+    {
+        return getCumulativeInterestPaid(end - 1) - getCumulativeInterestPaid(first - 1);
+    }
+
+    public double getAdditionalPrincipalPaidBetween(int first, int end)
+    {
+        return getCumulativeAdditionalPrincipalPaid(end - 1) - getCumulativeAdditionalPrincipalPaid(first - 1);
+    }
+}
@@ -1,9 +1,5 @@
 package com.adam.lane.amortifier;
 
-import java.text.NumberFormat;
-import java.util.ArrayList;
-import java.util.Locale;
-
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -11,28 +7,47 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-import com.adam.lane.amortifier.Loan.AmortizationMonth;
-
 public class AmortizationTableBaseAdapter extends BaseAdapter
 {
-    private static ArrayList<AmortizationMonth> mAmortArrayList;
+    // rows per year of the rolled up views
+    static final int QUARTERLY = 4;
+    static final int YEARLY = 1;
+
+    private final PagedAmortizationSchedule mSchedule;
+    private final MoneyFormatter mFormatter = MoneyFormatter.getInstance();
+
+    // "Payment", "Quarter" or "Year", depending on what a row covers
+    private final String mRowLabel;
 
     private LayoutInflater mInflater;
 
-    public AmortizationTableBaseAdapter(Context context, ArrayList<AmortizationMonth> results)
+    public AmortizationTableBaseAdapter(Context context, PagedAmortizationSchedule schedule)
     {
-        mAmortArrayList = results;
+        mSchedule = schedule;
         mInflater = LayoutInflater.from(context);
+
+        int periodsPerYear = schedule.getPeriodsPerYear();
+        int rowLabel = R.string.row_payment;
+        if(periodsPerYear == YEARLY)
+        {
+            rowLabel = R.string.row_year;
+        }
+        else if(periodsPerYear == QUARTERLY)
+        {
+            rowLabel = R.string.row_quarter;
+        }
+        mRowLabel = context.getString(rowLabel);
     }
 
     public int getCount()
     {
-        return mAmortArrayList.size();
+        return mSchedule.size();
     }
 
     public Object getItem(int position)
     {
-        return mAmortArrayList.get(position);
+        // rows are read by index straight from the schedule pages
+        return null;
     }
 
     public long getItemId(int position)
@@ -47,6 +62,7 @@ public class AmortizationTableBaseAdapter extends BaseAdapter
         {
             convertView = mInflater.inflate(R.layout.amortization_row, null);
             holder = new ViewHolder();
+            ((TextView) convertView.findViewById(R.id.textView8)).setText(mRowLabel);
             holder.month = (TextView) convertView.findViewById(R.id.monthLabel);
             holder.totalPaid = (TextView) convertView.findViewById(R.id.totalPaidLabel);
             holder.principalPaid = (TextView) convertView.findViewById(R.id.principalPaidLabel);
@@ -60,16 +76,15 @@ public class AmortizationTableBaseAdapter extends BaseAdapter
             holder = (ViewHolder) convertView.getTag();
         }
 
-        // format string
-        Locale currentLocale = Locale.getDefault();
-        NumberFormat currencyFormatter = NumberFormat.getCurrencyInstance(currentLocale);
-
-        holder.month.setText(Integer.toString(position + 1));
-        holder.totalPaid.setText(currencyFormatter.format(mAmortArrayList.get(position).getTotalPaid()));
-        holder.principalPaid.setText(currencyFormatter.format(mAmortArrayList.get(position).getPrincipalPaid()
-                + mAmortArrayList.get(position).getAdditionalPrincipalPaid()));
-        holder.interestPaid.setText(currencyFormatter.format(mAmortArrayList.get(position).getInterestPaid()));
-        holder.remainingBalance.setText(currencyFormatter.format(mAmortArrayList.get(position).getBalance()));
+        // format into the row's own buffers, nothing is allocated per bind
+        MoneyFormatter formatter = mFormatter;
+        holder.month.setText(holder.monthChars, 0, formatter.formatCount(position + 1, holder.monthChars));
+        holder.totalPaid.setText(holder.totalPaidChars, 0, formatter.format(mSchedule.getTotalPaid(position), holder.totalPaidChars));
+        holder.principalPaid.setText(holder.principalPaidChars, 0, formatter.format(mSchedule.getPrincipalPaid(position)
+                + mSchedule.getAdditionalPrincipalPaid(position), holder.principalPaidChars));
+        holder.interestPaid.setText(holder.interestPaidChars, 0, formatter.format(mSchedule.getInterestPaid(position), holder.interestPaidChars));
+        holder.remainingBalance.setText(holder.remainingBalanceChars, 0, formatter.format(mSchedule.getBalance(position),
+                holder.remainingBalanceChars));
 
         return convertView;
     }
@@ -81,5 +96,12 @@ public class AmortizationTableBaseAdapter extends BaseAdapter
         TextView principalPaid;
         TextView interestPaid;
         TextView remainingBalance;
+
+        // each TextView keeps a reference to the array it was given
+        final char[] monthChars = new char[MoneyFormatter.BUFFER_LENGTH];
+        final char[] totalPaidChars = new char[MoneyFormatter.BUFFER_LENGTH];
+        final char[] principalPaidChars = new char[MoneyFormatter.BUFFER_LENGTH];
+        final char[] interestPaidChars = new char[MoneyFormatter.BUFFER_LENGTH];
+        final char[] remainingBalanceChars = new char[MoneyFormatter.BUFFER_LENGTH];
     }
 }
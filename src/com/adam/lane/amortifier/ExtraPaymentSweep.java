@@ -0,0 +1,71 @@
+package com.adam.lane.amortifier;
+
+/**
+ * Payoff month and lifetime interest for a loan over an evenly spaced range
+ * of extra monthly payments, e.g. $0 to $2000 in $25 steps. The curve is
+ * computed in one batch into primitive arrays.
+ */
+public class ExtraPaymentSweep
+{
+    private final double[] mExtras;
+    private final int[] mPaymentCounts;
+    private final double[] mTotalInterest;
+
+    private double mMaxTotalInterest;
+    private int mMaxPaymentCount;
+
+    public ExtraPaymentSweep(Loan loan, double maxExtra, double step)
+    {
+        int count = (int) Math.floor(maxExtra / step + 1e-9) + 1;
+
+        mExtras = new double[count];
+        mPaymentCounts = new int[count];
+        mTotalInterest = new double[count];
+
+        for(int i = 0; i < count; i++)
+        {
+            mExtras[i] = i * step;
+        }
+
+        loan.sweepExtraPayments(mExtras, mPaymentCounts, mTotalInterest, count);
+
+        // extra payments only ever shorten the loan, so the first point is
+        // the largest, but take the max to be safe
+        for(int i = 0; i < count; i++)
+        {
+            mMaxTotalInterest = Math.max(mMaxTotalInterest, mTotalInterest[i]);
+            mMaxPaymentCount = Math.max(mMaxPaymentCount, mPaymentCounts[i]);
+        }
+    }
+
+    public int size()
+    {
+        return mExtras.length;
+    }
+
+    // getters to access data
+    public double getExtra(int index)
+    {
+        return mExtras[index];
+    }
+
+    public int getPaymentCount(int index)
+    {
+        return mPaymentCounts[index];
+    }
+
+    public double getTotalInterest(int index)
+    {
+        return mTotalInterest[index];
+    }
+
+    public double getMaxTotalInterest()
+    {
+        return mMaxTotalInterest;
+    }
+
+    public int getMaxPaymentCount()
+    {
+        return mMaxPaymentCount;
+    }
+}
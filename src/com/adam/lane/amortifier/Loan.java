@@ -1,75 +1,113 @@
 package com.adam.lane.amortifier;
 
-import java.util.ArrayList;
-
 public class Loan
 {
-    private final Double PAYMENTS_PER_YEAR = new Double(12);
+    private static final int MONTHS_PER_YEAR = 12;
 
-    private Double mPrincipal;
-    private Double mRate;
-    private Double mTerm;
-    private Double mExtraPayment;
+    /**
+     * One payment a month.
+     */
+    public static final int FREQUENCY_MONTHLY = 0;
 
-    // amortization table row class
-    public class AmortizationMonth
-    {
-        private final Double mBalance;
-        private final Double mTotalPaid;
-        private final Double mPrincipalPaid;
-        private final Double mInterestPaid;
-        private final Double mAdditionalPrincipalPaid;
+    /**
+     * Two payments a month, 24 a year.
+     */
+    public static final int FREQUENCY_SEMI_MONTHLY = 1;
 
-        // class used for each row of the amortization table
-        AmortizationMonth(Double balance, Double principalPaid, Double interestPaid, Double additionalPrincipalPaid)
-        {
-            mBalance = balance;
-            mPrincipalPaid = principalPaid;
-            mInterestPaid = interestPaid;
-            mAdditionalPrincipalPaid = additionalPrincipalPaid;
-            mTotalPaid = mPrincipalPaid + mInterestPaid + mAdditionalPrincipalPaid;
-        }
+    /**
+     * A payment every two weeks, 26 a year, sized to retire the loan over
+     * its term.
+     */
+    public static final int FREQUENCY_BIWEEKLY = 2;
 
-        // getters to access data
-        public Double getBalance()
-        {
-            return mBalance;
-        }
+    /**
+     * A payment every two weeks of half the monthly payment. The 26 half
+     * payments add up to a thirteenth monthly payment each year, so the loan
+     * is paid off early.
+     */
+    public static final int FREQUENCY_ACCELERATED_BIWEEKLY = 3;
 
-        public Double getTotalPaid()
-        {
-            return mTotalPaid;
-        }
+    /**
+     * A payment every week, 52 a year.
+     */
+    public static final int FREQUENCY_WEEKLY = 4;
 
-        public Double getPrincipalPaid()
-        {
-            return mPrincipalPaid;
-        }
+    /**
+     * Calculate in double precision, as the closed-form math does.
+     */
+    public static final int MODE_FLOATING_POINT = 0;
 
-        public Double getInterestPaid()
-        {
-            return mInterestPaid;
-        }
+    /**
+     * Calculate in whole cents, rounding the payment and each period's
+     * interest to the cent the way a lender's statement does.
+     */
+    public static final int MODE_CENTS = 1;
 
-        public Double getAdditionalPrincipalPaid()
-        {
-            return mAdditionalPrincipalPaid;
-        }
-    }
+    private double mPrincipal;
+    private double mRate;
+    private double mTerm;
+    private double mExtraPayment;
+    private AdjustableRate mAdjustableRate;
+    private PrepaymentEvent[] mPrepayments = NO_PREPAYMENTS;
+    private int mCalculationMode = MODE_FLOATING_POINT;
+    private int mPaymentFrequency = FREQUENCY_MONTHLY;
+    private int mPaymentsPerYear = MONTHS_PER_YEAR;
+
+    // upper bound on simulated payments, for loans whose payment never
+    // covers the interest; the cap is in years so it scales with the
+    // payment frequency
+    private static final int MAX_YEARS = 100;
+    private int mMaxPayments = MAX_YEARS * MONTHS_PER_YEAR;
+
+    // balances below this are rounding noise rather than money owed
+    static final double BALANCE_EPSILON = 1e-6;
+
+    // a level payment worked out at a near-zero rate can leave a few
+    // millionths of a dollar after its last payment; a balance this small a
+    // fraction of the payment counts as paid off too
+    private static final double PAYMENT_RESIDUE = 1e-8;
+
+    private static final PrepaymentEvent[] NO_PREPAYMENTS = new PrepaymentEvent[0];
+
+    // closed-form state, derived lazily from the loan parameters. The loan
+    // is split at every rate reset and lump sum into segments that each
+    // have one rate and payment, so each is closed-form; a fixed-rate loan
+    // without lump sums is a single segment. Per segment: first payment,
+    // period rate, balance before the first payment, minimum and scheduled
+    // payment, the lump sum paid with the payment just before it, and the
+    // running totals of the payments before it. mPrepared is set last, so a
+    // thread that sees it set also sees the state it guards
+    private volatile boolean mPrepared;
+    private boolean mClosedForm;
+    private int mSegmentCount;
+    private int[] mSegmentStart;
+    private double[] mSegmentRate;
+    private double[] mSegmentBalance;
+    private double[] mSegmentMinimumPayment;
+    private double[] mSegmentScheduledPayment;
+    private double[] mSegmentLump;
+    private double[] mSegmentTotalPaid;
+    private double[] mSegmentAdditionalPaid;
+    private int mPaymentCount;
+    private double mTotalPaid;
+    private double mTotalAdditionalPaid;
+    private AmortizationSchedule mFallbackSchedule;
+    private double mFallbackTotalPaid;
+    private double mFallbackTotalInterestPaid;
 
     public Loan()
     {
     }
 
-    public Loan(Double principal, Double rate, Double term)
+    public Loan(double principal, double rate, double term)
     {
         mPrincipal = principal;
         mRate = rate;
         mTerm = term;
-        mExtraPayment = new Double(0);
+        mExtraPayment = 0;
     }
 
-    public Loan(Double principal, Double rate, Double term, Double extraPayment)
+    public Loan(double principal, double rate, double term, double extraPayment)
     {
         mPrincipal = principal;
         mRate = rate;
@@ -77,40 +115,193 @@ public class Loan
         mExtraPayment = extraPayment;
     }
 
-    public Double getMonthlyPayment()
+    /**
+     * Minimum payment at the loan's initial rate, made once per period of
+     * the payment frequency: monthly unless another frequency is set. An
+     * adjustable-rate loan recomputes it at each reset.
+     */
+    public double getMonthlyPayment()
     {
-        if(0 == mRate)
+        double payment;
+        if(mPaymentFrequency == FREQUENCY_ACCELERATED_BIWEEKLY)
+        {
+            payment = levelPayment(mRate / MONTHS_PER_YEAR, mTerm) / 2;
+        }
+        else
+        {
+            payment = levelPayment(mRate / mPaymentsPerYear, getTermPayments());
+        }
+
+        if(mCalculationMode == MODE_CENTS && !Double.isNaN(payment) && !Double.isInfinite(payment))
         {
-            return mPrincipal / mTerm;
+            payment = toCents(payment) / 100.0;
+        }
+        return payment;
+    }
+
+    // payment that retires the principal over the given number of periods
+    private double levelPayment(double periodRate, double payments)
+    {
+        if(0 == periodRate)
+        {
+            return mPrincipal / payments;
         }
         else if(0 == mPrincipal)
         {
-            return new Double(0);
+            return 0;
         }
-        else if(0 == mTerm)
+        else if(0 == payments)
         {
-            return new Double(0);
+            return 0;
         }
-        else
+        double growthLess1 = growthLess1(periodRate, payments);
+        return mPrincipal * (periodRate * (growthLess1 + 1)) / growthLess1;
+    }
+
+    // the term, which is in months, as a number of scheduled payments
+    private double getTermPayments()
+    {
+        return mTerm * mPaymentsPerYear / MONTHS_PER_YEAR;
+    }
+
+    public AmortizationSchedule getAmortizationSchedule()
+    {
+        AmortizationSchedule schedule = new AmortizationSchedule((int) Math.ceil(getTermPayments()) + 1);
+        fillSchedule(schedule, 0, mMaxPayments);
+        return schedule;
+    }
+
+    /**
+     * Fill a block of the amortization table into a reusable schedule. For
+     * closed-form loans the block is simulated from the closed-form balance
+     * at its start, so any range of payments can be produced without
+     * simulating the ones before it; other loans copy from their one full
+     * simulation.
+     * 
+     * @param schedule
+     *            cleared and refilled with the block
+     * @param firstPayment
+     *            payment (0 based) the block starts at
+     * @param count
+     *            maximum number of payments to fill
+     */
+    void fillSchedule(AmortizationSchedule schedule, int firstPayment, int count)
+    {
+        prepare();
+        if(mClosedForm)
         {
-            Double tempPow = Math.pow((1 + mRate / PAYMENTS_PER_YEAR), mTerm);
-            return mPrincipal * (mRate / PAYMENTS_PER_YEAR * tempPow) / (tempPow - 1);
+            simulate(schedule, firstPayment, count);
+            return;
+        }
+
+        int lastPayment = Math.min(firstPayment + count, mFallbackSchedule.size());
+        schedule.clear(getCumulativeTotalPaid(firstPayment), getCumulativePrincipalPaid(firstPayment), getCumulativeInterestPaid(firstPayment),
+                getCumulativeAdditionalPrincipalPaid(firstPayment));
+        for(int payment = firstPayment; payment < lastPayment; payment++)
+        {
+            schedule.add(mFallbackSchedule.getBalance(payment), mFallbackSchedule.getPrincipalPaid(payment),
+                    mFallbackSchedule.getInterestPaid(payment), mFallbackSchedule.getAdditionalPrincipalPaid(payment));
         }
     }
 
-    public ArrayList<AmortizationMonth> getAmortizationTable()
+    /**
+     * Fill a block of the table grouped into periods, e.g. 1 period per year
+     * for a yearly view. Each row holds the period's principal, interest and
+     * extra principal and the balance at its end. Rows come straight from
+     * the running totals, so no payment row is built and each period costs
+     * the same however many payments it spans.
+     *
+     * @param schedule
+     *            cleared and refilled with one row per period
+     * @param firstPeriod
+     *            period (0 based) the block starts at
+     * @param count
+     *            maximum number of periods to fill
+     * @param periodsPerYear
+     *            rows per year, which need not divide the payments per year
+     *            evenly, e.g. a biweekly loan's quarters are 6 or 7 payments
+     */
+    void fillRollup(AmortizationSchedule schedule, int firstPeriod, int count, int periodsPerYear)
     {
-        ArrayList<AmortizationMonth> amortTable = new ArrayList<AmortizationMonth>();
+        int payments = getPaymentCount();
+        int start = Math.min(getPeriodStart(firstPeriod, periodsPerYear), payments);
+        schedule.clear(getCumulativeTotalPaid(start), getCumulativePrincipalPaid(start), getCumulativeInterestPaid(start),
+                getCumulativeAdditionalPrincipalPaid(start));
 
-        Double balance = mPrincipal;
-        Double monthlyRate = mRate / PAYMENTS_PER_YEAR;
-        Double monthlyPayment = getMonthlyPayment();
-        Double extraPayment = mExtraPayment;
+        for(int period = firstPeriod; period < firstPeriod + count && start < payments; period++)
+        {
+            int end = Math.min(getPeriodStart(period + 1, periodsPerYear), payments);
+            schedule.add(getBalanceAfter(end), getPrincipalPaidBetween(start, end), getInterestPaidBetween(start, end),
+                    getAdditionalPrincipalPaidBetween(start, end));
+            start = end;
+        }
+    }
+
+    /**
+     * First payment (0 based) of the given period (0 based) when each year
+     * is split into {@code periodsPerYear} periods.
+     */
+    public int getPeriodStart(int period, int periodsPerYear)
+    {
+        return (int) ((long) period * mPaymentsPerYear / periodsPerYear);
+    }
 
-        while(balance > 0)
+    /**
+     * Number of periods of {@code periodsPerYear} per year that the loan's
+     * payments span.
+     */
+    public int getPeriodCount(int periodsPerYear)
+    {
+        return (int) (((long) getPaymentCount() * periodsPerYear + mPaymentsPerYear - 1) / mPaymentsPerYear);
+    }
+
+    /**
+     * Period (0 based) of {@code periodsPerYear} per year that holds the
+     * given payment (0 based).
+     */
+    public int getPeriodOf(int payment, int periodsPerYear)
+    {
+        // the last period whose start is at or before the payment
+        return (int) (((long) payment * periodsPerYear + periodsPerYear - 1) / mPaymentsPerYear);
+    }
+
+    private void simulate(AmortizationSchedule schedule, int firstPayment, int count)
+    {
+        // a block from the middle of the loan starts its running totals from
+        // the closed-form sums of the payments before it
+        if(firstPayment == 0)
         {
-            Double interestForMonth = balance * monthlyRate;
-            Double principalForMonth = monthlyPayment - interestForMonth;
+            schedule.clear();
+        }
+        else
+        {
+            schedule.clear(getCumulativeTotalPaid(firstPayment), getCumulativePrincipalPaid(firstPayment),
+                    getCumulativeInterestPaid(firstPayment), getCumulativeAdditionalPrincipalPaid(firstPayment));
+        }
+
+        int segment = segmentOf(firstPayment);
+        int nextStart = nextSegmentStart(segment);
+        double balance = (firstPayment == 0) ? mPrincipal : segmentBalance(segment, firstPayment);
+        double monthlyRate = mSegmentRate[segment];
+        double monthlyPayment = mSegmentMinimumPayment[segment];
+        double extraPayment = mExtraPayment;
+        int lastPayment = Math.min(firstPayment + count, mClosedForm ? mPaymentCount : mMaxPayments);
+
+        for(int payment = firstPayment; balance > BALANCE_EPSILON && payment < lastPayment; payment++)
+        {
+            // at the start of a segment carry on from its closed-form
+            // balance, rate and payment
+            if(payment == nextStart)
+            {
+                segment++;
+                nextStart = nextSegmentStart(segment);
+                balance = mSegmentBalance[segment];
+                monthlyRate = mSegmentRate[segment];
+                monthlyPayment = mSegmentMinimumPayment[segment];
+            }
+
+            double interestForMonth = balance * monthlyRate;
+            double principalForMonth = monthlyPayment - interestForMonth;
 
             // make sure we don't go negative
             if(balance < (principalForMonth + extraPayment))
@@ -118,7 +309,7 @@ public class Loan
                 if(balance < principalForMonth)
                 {
                     principalForMonth = balance;
-                    extraPayment = new Double(0);
+                    extraPayment = 0;
                 }
                 else
                 {
@@ -128,45 +319,968 @@ public class Loan
             else if(balance < principalForMonth)
             {
                 principalForMonth = balance;
-                extraPayment = new Double(0);
+                extraPayment = 0;
             }
 
             balance -= (principalForMonth + extraPayment);
 
-            amortTable.add(new AmortizationMonth(balance, principalForMonth, interestForMonth, extraPayment));
+            // the closed form clears the residue with this payment, so the
+            // table does too rather than adding a row for it
+            if(balance > 0 && isPaidOff(balance, monthlyPayment + mExtraPayment))
+            {
+                principalForMonth += balance;
+                balance = 0;
+            }
+
+            // the last payment of a segment can carry a lump sum
+            double additionalForMonth = extraPayment;
+            if(payment + 1 == nextStart && segment + 1 < mSegmentCount)
+            {
+                double lump = Math.min(mSegmentLump[segment + 1], Math.max(0, balance));
+                additionalForMonth += lump;
+                balance -= lump;
+            }
+
+            schedule.add(balance, principalForMonth, interestForMonth, additionalForMonth);
+        }
+    }
+
+    // the same loop in whole cents: the payment and every period's interest
+    // are rounded to the cent, and the last payment clears the exact balance
+    private void simulateCents(AmortizationSchedule schedule)
+    {
+        schedule.clear();
+
+        long balance = toCents(mPrincipal);
+        long monthlyPayment = toCents(getMonthlyPayment());
+        long extraPayment = toCents(mExtraPayment);
+        double monthlyRate = mRate / mPaymentsPerYear;
+        int finalPayment = (int) Math.ceil(getTermPayments()) - 1;
+        int nextReset = (mAdjustableRate == null) ? mMaxPayments : mAdjustableRate.getNextReset(1);
+        int nextPrepayment = nextPrepayment(0);
+        int adjustments = 0;
+
+        for(int payment = 0; balance > 0 && payment < mMaxPayments; payment++)
+        {
+            // a rate reset recomputes the payment, to the cent, over the
+            // rest of the term
+            if(payment == nextReset)
+            {
+                adjustments++;
+                double rate = mAdjustableRate.getRate(mRate, adjustments);
+                monthlyRate = rate / mPaymentsPerYear;
+                monthlyPayment = toCents(resetPayment(balance / 100.0, rate, payment));
+                nextReset = mAdjustableRate.getNextReset(payment + 1);
+            }
+
+            long interestForMonth = Math.round(balance * monthlyRate);
+            long principalForMonth = monthlyPayment - interestForMonth;
+            long extraForMonth = extraPayment;
+
+            // the last scheduled payment absorbs what rounding the payment
+            // to the cent left on the balance
+            if(payment == finalPayment && balance > (principalForMonth + extraForMonth))
+            {
+                principalForMonth = balance - extraForMonth;
+            }
+
+            // make sure we don't go negative
+            if(balance < (principalForMonth + extraForMonth))
+            {
+                if(balance < principalForMonth)
+                {
+                    principalForMonth = balance;
+                    extraForMonth = 0;
+                }
+                else
+                {
+                    extraForMonth = balance - principalForMonth;
+                }
+            }
+
+            balance -= (principalForMonth + extraForMonth);
+
+            if(payment == nextPrepayment)
+            {
+                long lump = Math.min(toCents(prepaymentAmount(payment)), balance);
+                extraForMonth += lump;
+                balance -= lump;
+                nextPrepayment = nextPrepayment(payment + 1);
+            }
+
+            schedule.add(balance / 100.0, principalForMonth / 100.0, interestForMonth / 100.0, extraForMonth / 100.0);
+        }
+    }
+
+    private static long toCents(double amount)
+    {
+        return Math.round(amount * 100);
+    }
+
+    /**
+     * Number of payments needed to pay the loan off, including any extra
+     * monthly payment. Constant time for amortizing loans once the rate
+     * segments are known.
+     */
+    public int getPaymentCount()
+    {
+        prepare();
+        return mClosedForm ? mPaymentCount : mFallbackSchedule.size();
+    }
+
+    /**
+     * Balance remaining after the given number of payments have been made.
+     * 
+     * @param payments
+     *            payments made so far, 0 for the original principal
+     */
+    public double getBalanceAfter(int payments)
+    {
+        prepare();
+        if(payments <= 0)
+        {
+            return mPrincipal;
+        }
+        if(!mClosedForm)
+        {
+            return payments <= mFallbackSchedule.size() ? mFallbackSchedule.getBalance(payments - 1) : 0;
+        }
+        if(payments >= mPaymentCount)
+        {
+            return 0;
+        }
+        return closedFormBalance(payments);
+    }
+
+    /**
+     * Interest portion of the given payment (0 based).
+     */
+    public double getInterestPaid(int payment)
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return inFallback(payment) ? mFallbackSchedule.getInterestPaid(payment) : 0;
+        }
+        if(payment < 0 || payment >= mPaymentCount)
+        {
+            return 0;
+        }
+        int segment = segmentOf(payment);
+        return segmentBalance(segment, payment) * mSegmentRate[segment];
+    }
+
+    /**
+     * Scheduled principal portion of the given payment (0 based), not
+     * counting the extra monthly payment.
+     */
+    public double getPrincipalPaid(int payment)
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return inFallback(payment) ? mFallbackSchedule.getPrincipalPaid(payment) : 0;
+        }
+        if(payment < 0 || payment >= mPaymentCount)
+        {
+            return 0;
+        }
+        int segment = segmentOf(payment);
+        double balance = segmentBalance(segment, payment);
+        return Math.min(mSegmentMinimumPayment[segment] - balance * mSegmentRate[segment], balance);
+    }
+
+    /**
+     * Extra principal applied with the given payment (0 based), including
+     * any lump sum paid with it.
+     */
+    public double getAdditionalPrincipalPaid(int payment)
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return inFallback(payment) ? mFallbackSchedule.getAdditionalPrincipalPaid(payment) : 0;
+        }
+        if(payment < 0 || payment >= mPaymentCount)
+        {
+            return 0;
+        }
+        int segment = segmentOf(payment);
+        double balance = segmentBalance(segment, payment);
+        double principal = mSegmentMinimumPayment[segment] - balance * mSegmentRate[segment];
+        double extra = Math.max(0, Math.min(mSegmentScheduledPayment[segment] - mSegmentMinimumPayment[segment], balance - principal));
+
+        // the last payment of a segment can carry a lump sum
+        if(payment + 1 == nextSegmentStart(segment) && segment + 1 < mSegmentCount)
+        {
+            extra += mSegmentLump[segment + 1];
+        }
+        return extra;
+    }
+
+    /**
+     * Sum of every payment over the life of the loan.
+     */
+    public double getTotalPaid()
+    {
+        prepare();
+        return mClosedForm ? mTotalPaid : mFallbackTotalPaid;
+    }
+
+    /**
+     * Sum of the interest paid over the life of the loan.
+     */
+    public double getTotalInterestPaid()
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return mFallbackTotalInterestPaid;
+        }
+        return getTotalPaid() - mPrincipal;
+    }
+
+    /**
+     * Sum of the first {@code payments} payments. Constant time for
+     * amortizing loans: every payment before the last is the full scheduled
+     * amount of its segment.
+     */
+    public double getCumulativeTotalPaid(int payments)
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return mFallbackSchedule.getCumulativeTotalPaid(fallbackRow(payments));
+        }
+        payments = clampPayments(payments);
+        if(payments == mPaymentCount)
+        {
+            return mTotalPaid;
+        }
+        int segment = segmentOf(payments);
+        return mSegmentTotalPaid[segment] + (payments - mSegmentStart[segment]) * mSegmentScheduledPayment[segment];
+    }
+
+    /**
+     * Scheduled principal paid by the first {@code payments} payments, not
+     * counting extra payments. Constant time for amortizing loans.
+     */
+    public double getCumulativePrincipalPaid(int payments)
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return mFallbackSchedule.getCumulativePrincipalPaid(fallbackRow(payments));
+        }
+        payments = clampPayments(payments);
+        return (mPrincipal - getBalanceAfter(payments)) - getCumulativeAdditionalPrincipalPaid(payments);
+    }
+
+    /**
+     * Interest paid by the first {@code payments} payments. Constant time for
+     * amortizing loans.
+     */
+    public double getCumulativeInterestPaid(int payments)
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return mFallbackSchedule.getCumulativeInterestPaid(fallbackRow(payments));
+        }
+        payments = clampPayments(payments);
+        return getCumulativeTotalPaid(payments) - (mPrincipal - getBalanceAfter(payments));
+    }
+
+    /**
+     * Extra principal paid by the first {@code payments} payments. Constant
+     * time for amortizing loans: every payment before the last carries the
+     * full extra amount.
+     */
+    public double getCumulativeAdditionalPrincipalPaid(int payments)
+    {
+        prepare();
+        if(!mClosedForm)
+        {
+            return mFallbackSchedule.getCumulativeAdditionalPrincipalPaid(fallbackRow(payments));
+        }
+        payments = clampPayments(payments);
+        if(payments == mPaymentCount)
+        {
+            return mTotalAdditionalPaid;
+        }
+        int segment = segmentOf(payments);
+        double extra = mSegmentScheduledPayment[segment] - mSegmentMinimumPayment[segment];
+        return mSegmentAdditionalPaid[segment] + (payments - mSegmentStart[segment]) * extra;
+    }
+
+    /**
+     * Sum of payments {@code first} (inclusive) to {@code end} (exclusive), 0
+     * based, e.g. 12 and 24 for the second year of a loan.
+     */
+    public double getTotalPaidBetween(int first, int end)
+    {
+        return getCumulativeTotalPaid(end) - getCumulativeTotalPaid(first);
+    }
+
+    public double getPrincipalPaidBetween(int first, int end)
+    {
+        return getCumulativePrincipalPaid(end) - getCumulativePrincipalPaid(first);
+    }
+
+    public double getInterestPaidBetween(int first, int end)
+    {
+        return getCumulativeInterestPaid(end) - getCumulativeInterestPaid(first);
+    }
+
+    public double getAdditionalPrincipalPaidBetween(int first, int end)
+    {
+        return getCumulativeAdditionalPrincipalPaid(end) - getCumulativeAdditionalPrincipalPaid(first);
+    }
+
+    private int clampPayments(int payments)
+    {
+        return Math.max(0, Math.min(payments, mPaymentCount));
+    }
+
+    // row of the simulated schedule that ends the given payment count, -1
+    // for none
+    private int fallbackRow(int payments)
+    {
+        return Math.max(-1, Math.min(payments, mFallbackSchedule.size()) - 1);
+    }
+
+    /**
+     * Find the smallest extra monthly payment, to the cent, that pays the
+     * loan off within the given number of payments. The payoff month is a
+     * step function of the extra payment, so it is bracketed between no
+     * extra and paying everything off at once, then bisected. Each probe is
+     * the closed-form payoff month, or a full payoff for adjustable-rate
+     * loans, loans with lump sums and loans that have no closed form.
+     * 
+     * @param targetPayments
+     *            number of payments to be done in, at least 1
+     * @return extra monthly payment needed, 0 if none is
+     */
+    public double getExtraPaymentForPayoff(int targetPayments)
+    {
+        if(targetPayments < 1)
+        {
+            throw new IllegalArgumentException("targetPayments must be at least 1");
+        }
+
+        double monthlyPayment = getMonthlyPayment();
+        long low = 0;
+        long high = Math.max(0, toCents(mPrincipal * (1 + mRate / mPaymentsPerYear) - monthlyPayment) + 1);
+
+        if(paysOffWithin(0, targetPayments))
+        {
+            return 0;
+        }
+
+        // invariant: low cents is not enough, high cents is
+        while(high - low > 1)
+        {
+            long middle = (low + high) >>> 1;
+            if(paysOffWithin(middle, targetPayments))
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle;
+            }
+        }
+        return high / 100.0;
+    }
+
+    /**
+     * Evaluate a batch of extra monthly payments at once, filling the payoff
+     * month and lifetime interest for each into the caller's arrays. Every
+     * value is closed-form, so the whole batch costs about as much as a
+     * handful of table rows. Adjustable-rate loans, loans with lump sums and
+     * loans without a closed form compute a full payoff for each value
+     * instead.
+     * 
+     * @param extras
+     *            extra monthly payments to evaluate
+     * @param paymentCounts
+     *            receives the number of payments for each extra payment
+     * @param totalInterest
+     *            receives the lifetime interest for each extra payment
+     * @param count
+     *            number of entries to evaluate
+     */
+    public void sweepExtraPayments(double[] extras, int[] paymentCounts, double[] totalInterest, int count)
+    {
+        double periodRate = mRate / mPaymentsPerYear;
+        double monthlyPayment = getMonthlyPayment();
+        boolean closedForm = mCalculationMode == MODE_FLOATING_POINT && isSingleSegment() && !Double.isNaN(monthlyPayment)
+                && !Double.isInfinite(monthlyPayment) && periodRate >= 0;
+
+        for(int i = 0; i < count; i++)
+        {
+            double payment = monthlyPayment + extras[i];
+            if(closedForm && payment > mPrincipal * periodRate)
+            {
+                int payments = payoffCount(mPrincipal, periodRate, payment, mMaxPayments);
+                paymentCounts[i] = payments;
+
+                // as in getTotalPaid(): full payments, then the remainder
+                double interest = 0;
+                if(payments > 0)
+                {
+                    double lastBalance = balanceAfter(mPrincipal, periodRate, payment, payments - 1);
+                    interest = (payments - 1) * payment + lastBalance * (1 + periodRate) - mPrincipal;
+                }
+                totalInterest[i] = interest;
+            }
+            else
+            {
+                Loan trial = withExtraPayment(extras[i]);
+                paymentCounts[i] = trial.getPaymentCount();
+                totalInterest[i] = trial.getTotalInterestPaid();
+            }
         }
+    }
 
-        return amortTable;
+    private boolean paysOffWithin(long extraCents, int targetPayments)
+    {
+        double extra = extraCents / 100.0;
+
+        if(mCalculationMode == MODE_FLOATING_POINT && isSingleSegment())
+        {
+            double periodRate = mRate / mPaymentsPerYear;
+            double payment = getMonthlyPayment() + extra;
+            if(!Double.isNaN(payment) && !Double.isInfinite(payment) && periodRate >= 0)
+            {
+                return payoffCount(mPrincipal, periodRate, payment, mMaxPayments) <= targetPayments;
+            }
+        }
+
+        return withExtraPayment(extra).getPaymentCount() <= targetPayments;
+    }
+
+    // a loan on the same terms with a different extra monthly payment
+    private Loan withExtraPayment(double extraPayment)
+    {
+        Loan trial = new Loan(mPrincipal, mRate, mTerm, extraPayment);
+        trial.setCalculationMode(mCalculationMode);
+        trial.setPaymentFrequency(mPaymentFrequency);
+        trial.setAdjustableRate(mAdjustableRate);
+        trial.mPrepayments = mPrepayments;
+        return trial;
+    }
+
+    // true when one rate and payment hold for the whole loan
+    boolean isSingleSegment()
+    {
+        return mAdjustableRate == null && mPrepayments.length == 0;
+    }
+
+    // whole number of payments to retire the principal: the first n with
+    // B(n) at or below rounding noise, maxPayments when the payment never
+    // covers the interest
+    static int payoffCount(double principal, double periodRate, double payment, int maxPayments)
+    {
+        if(principal <= BALANCE_EPSILON)
+        {
+            return 0;
+        }
+        if(payment <= principal * periodRate)
+        {
+            return maxPayments;
+        }
+
+        double payments;
+        if(periodRate == 0)
+        {
+            payments = principal / payment;
+        }
+        else
+        {
+            payments = Math.log(payment / (payment - principal * periodRate)) / Math.log1p(periodRate);
+        }
+
+        // the logarithm can land a hair above a whole payment that already
+        // clears the balance
+        int count = (int) Math.min(Math.ceil(payments), maxPayments);
+        if(count > 1 && isPaidOff(balanceAfter(principal, periodRate, payment, count - 1), payment))
+        {
+            count--;
+        }
+        return count;
+    }
+
+    // true when what is left after a payment is rounding noise rather than
+    // money owed
+    static boolean isPaidOff(double balance, double payment)
+    {
+        return balance <= BALANCE_EPSILON || balance <= payment * PAYMENT_RESIDUE;
+    }
+
+    // payment recomputed at a rate reset to retire the balance over the
+    // rest of the term; an accelerated biweekly loan keeps paying half of
+    // what the monthly payment would be
+    private double resetPayment(double balance, double annualRate, int start)
+    {
+        if(mPaymentFrequency == FREQUENCY_ACCELERATED_BIWEEKLY)
+        {
+            double remainingMonths = mTerm - (double) start * MONTHS_PER_YEAR / mPaymentsPerYear;
+            return amortizingPayment(balance, annualRate / MONTHS_PER_YEAR, remainingMonths) / 2;
+        }
+        return amortizingPayment(balance, annualRate / mPaymentsPerYear, getTermPayments() - start);
+    }
+
+    // level payment that retires the balance over the remaining payments, or
+    // all of it when at most one payment remains
+    private static double amortizingPayment(double balance, double periodRate, double remaining)
+    {
+        if(remaining <= 1)
+        {
+            return balance * (1 + periodRate);
+        }
+        if(periodRate == 0)
+        {
+            return balance / remaining;
+        }
+        double growthLess1 = growthLess1(periodRate, remaining);
+        return balance * periodRate * (growthLess1 + 1) / growthLess1;
+    }
+
+    // B(k) = B(0) * g^k - A * (g^k - 1) / r, or B(0) - A * k when r is 0,
+    // rearranged as B(0) - (A / r - B(0)) * (g^k - 1)
+    static double balanceAfter(double principal, double periodRate, double payment, int payments)
+    {
+        if(periodRate == 0)
+        {
+            return principal - payment * payments;
+        }
+        double growthLess1 = growthLess1(periodRate, payments);
+        return principal - (payment / periodRate - principal) * growthLess1;
+    }
+
+    // (1 + r)^n - 1 without the cancellation of subtracting 1 from a power
+    // near 1, which at near-zero rates costs most of the digits
+    private static double growthLess1(double periodRate, double payments)
+    {
+        return Math.expm1(payments * Math.log1p(periodRate));
+    }
+
+    private boolean inFallback(int payment)
+    {
+        return payment >= 0 && payment < mFallbackSchedule.size();
+    }
+
+    private double closedFormBalance(int payments)
+    {
+        return segmentBalance(segmentOf(payments), payments);
+    }
+
+    // balance after the given number of payments, which must fall in the
+    // segment
+    private double segmentBalance(int segment, int payments)
+    {
+        return balanceAfter(mSegmentBalance[segment], mSegmentRate[segment], mSegmentScheduledPayment[segment], payments
+                - mSegmentStart[segment]);
+    }
+
+    // the segment holding the given payment (0 based)
+    private int segmentOf(int payment)
+    {
+        int low = 0;
+        int high = mSegmentCount - 1;
+        while(low < high)
+        {
+            int middle = (low + high + 1) >>> 1;
+            if(mSegmentStart[middle] <= payment)
+            {
+                low = middle;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private int nextSegmentStart(int segment)
+    {
+        return (segment + 1 < mSegmentCount) ? mSegmentStart[segment + 1] : mMaxPayments;
+    }
+
+    // rough heap cost of the simulated schedule kept for a loan without a
+    // closed form, 0 when there is none
+    long getFallbackByteSize()
+    {
+        prepare();
+        return (mFallbackSchedule != null) ? mFallbackSchedule.getByteSize() : 0;
+    }
+
+    // derive the closed-form constants, or simulate once when the loan
+    // cannot be expressed in closed form (the payment never covers the
+    // interest, the inputs give no finite payment, or every period is
+    // rounded to the cent)
+    private void prepare()
+    {
+        if(mPrepared)
+        {
+            return;
+        }
+
+        mClosedForm = mCalculationMode == MODE_FLOATING_POINT && buildSegments();
+
+        // built aside and assigned once complete, so a table already handed
+        // out is never swapped for a half-filled one
+        AmortizationSchedule fallbackSchedule = null;
+        if(!mClosedForm)
+        {
+            fallbackSchedule = new AmortizationSchedule((int) Math.ceil(getTermPayments()) + 1);
+            if(mCalculationMode == MODE_CENTS)
+            {
+                simulateCents(fallbackSchedule);
+            }
+            else
+            {
+                simulate(fallbackSchedule, 0, mMaxPayments);
+            }
+
+            // sum in whole cents when the rows are whole cents, so the
+            // totals match the rows exactly
+            long totalCents = 0;
+            long interestCents = 0;
+            double total = 0;
+            double interest = 0;
+            for(int i = 0; i < fallbackSchedule.size(); i++)
+            {
+                totalCents += toCents(fallbackSchedule.getTotalPaid(i));
+                interestCents += toCents(fallbackSchedule.getInterestPaid(i));
+                total += fallbackSchedule.getTotalPaid(i);
+                interest += fallbackSchedule.getInterestPaid(i);
+            }
+            mFallbackTotalPaid = (mCalculationMode == MODE_CENTS) ? totalCents / 100.0 : total;
+            mFallbackTotalInterestPaid = (mCalculationMode == MODE_CENTS) ? interestCents / 100.0 : interest;
+        }
+
+        mFallbackSchedule = fallbackSchedule;
+        mPrepared = true;
+    }
+
+    // split the loan into segments at its rate resets and lump sums,
+    // jumping over each one with the closed-form balance rather than
+    // stepping through it, and find the payoff. Returns false when there is
+    // no closed form; the segments are still filled in for the simulation
+    // that replaces it
+    private boolean buildSegments()
+    {
+        double periodRate = mRate / mPaymentsPerYear;
+        double minimumPayment = getMonthlyPayment();
+        double balance = mPrincipal;
+        double lump = 0;
+        double totalPaid = 0;
+        double additionalPaid = 0;
+        int start = 0;
+        int adjustments = 0;
+        int nextReset = (mAdjustableRate == null) ? mMaxPayments : mAdjustableRate.getNextReset(1);
+
+        mSegmentCount = 0;
+        ensureSegmentCapacity((mAdjustableRate == null) ? 1 : 2 + Math.max(0, (int) Math.ceil(getTermPayments()) - mAdjustableRate.getFixedPayments())
+                / mAdjustableRate.getAdjustmentInterval());
+
+        while(true)
+        {
+            double scheduledPayment = minimumPayment + mExtraPayment;
+            addSegment(start, periodRate, balance, minimumPayment, scheduledPayment, lump, totalPaid, additionalPaid);
+            if(Double.isNaN(scheduledPayment) || Double.isInfinite(scheduledPayment) || periodRate < 0)
+            {
+                return false;
+            }
+
+            // paid off at the start of a segment, by the lump sum before it
+            if(isPaidOff(balance, scheduledPayment))
+            {
+                mPaymentCount = start;
+                break;
+            }
+
+            // the segment runs to the next reset or through the next payment
+            // carrying a lump sum. One that ends with money still owed is
+            // jumped over without looking for the payoff inside it
+            int prepayment = nextPrepayment(start);
+            int end = Math.min(Math.min(nextReset, prepayment + 1), mMaxPayments);
+            double endBalance = (end < mMaxPayments) ? balanceAfter(balance, periodRate, scheduledPayment, end - start) : 0;
+            if(isPaidOff(endBalance, scheduledPayment) && scheduledPayment > balance * periodRate)
+            {
+                int payments = payoffCount(balance, periodRate, scheduledPayment, mMaxPayments);
+                if(start + payments <= end)
+                {
+                    mPaymentCount = start + payments;
+                    break;
+                }
+            }
+            if(end >= mMaxPayments)
+            {
+                return false;
+            }
+
+            // pays through the whole segment and any lump sum at its end
+            int payments = end - start;
+            lump = (end == prepayment + 1) ? Math.min(prepaymentAmount(prepayment), endBalance) : 0;
+            balance = endBalance - lump;
+            totalPaid += payments * scheduledPayment + lump;
+            additionalPaid += payments * (scheduledPayment - minimumPayment) + lump;
+            start = end;
+
+            // at a reset the rate changes and the payment is recomputed over
+            // the rest of the term; a lump sum alone keeps the payment
+            if(start == nextReset)
+            {
+                adjustments++;
+                double rate = mAdjustableRate.getRate(mRate, adjustments);
+                periodRate = rate / mPaymentsPerYear;
+                minimumPayment = resetPayment(balance, rate, start);
+                nextReset = mAdjustableRate.getNextReset(start + 1);
+            }
+        }
+
+        // every payment but the last is the full scheduled amount; the last
+        // one clears whatever balance is left plus its interest. A loan
+        // cleared by a lump sum has its totals at the start of the empty
+        // segment after it
+        int segment = mSegmentCount - 1;
+        if(mPaymentCount == mSegmentStart[segment])
+        {
+            mTotalPaid = mSegmentTotalPaid[segment];
+            mTotalAdditionalPaid = mSegmentAdditionalPaid[segment];
+        }
+        else
+        {
+            int fullPayments = mPaymentCount - 1 - mSegmentStart[segment];
+            double extra = mSegmentScheduledPayment[segment] - mSegmentMinimumPayment[segment];
+            double lastBalance = segmentBalance(segment, mPaymentCount - 1);
+            double lastPrincipal = mSegmentMinimumPayment[segment] - lastBalance * mSegmentRate[segment];
+
+            mTotalPaid = mSegmentTotalPaid[segment] + fullPayments * mSegmentScheduledPayment[segment] + lastBalance
+                    * (1 + mSegmentRate[segment]);
+            mTotalAdditionalPaid = mSegmentAdditionalPaid[segment] + fullPayments * extra
+                    + Math.max(0, Math.min(extra, lastBalance - lastPrincipal));
+        }
+        return true;
+    }
+
+    // first payment at or after the given one that carries a lump sum,
+    // mMaxPayments when none does
+    private int nextPrepayment(int payment)
+    {
+        int next = mMaxPayments;
+        for(PrepaymentEvent prepayment : mPrepayments)
+        {
+            next = Math.min(next, prepayment.getNextPayment(payment));
+        }
+        return next;
+    }
+
+    // sum of the lump sums paid with the given payment
+    private double prepaymentAmount(int payment)
+    {
+        double amount = 0;
+        for(PrepaymentEvent prepayment : mPrepayments)
+        {
+            if(prepayment.getNextPayment(payment) == payment)
+            {
+                amount += prepayment.getAmount();
+            }
+        }
+        return amount;
+    }
+
+    private void addSegment(int start, double periodRate, double balance, double minimumPayment, double scheduledPayment, double lump,
+            double totalPaid, double additionalPaid)
+    {
+        ensureSegmentCapacity(mSegmentCount + 1);
+        int segment = mSegmentCount++;
+        mSegmentStart[segment] = start;
+        mSegmentRate[segment] = periodRate;
+        mSegmentBalance[segment] = balance;
+        mSegmentMinimumPayment[segment] = minimumPayment;
+        mSegmentScheduledPayment[segment] = scheduledPayment;
+        mSegmentLump[segment] = lump;
+        mSegmentTotalPaid[segment] = totalPaid;
+        mSegmentAdditionalPaid[segment] = additionalPaid;
+    }
+
+    // the arrays are kept across prepare() calls and only grow
+    private void ensureSegmentCapacity(int capacity)
+    {
+        if(mSegmentStart != null && mSegmentStart.length >= capacity)
+        {
+            return;
+        }
+        if(mSegmentStart != null)
+        {
+            capacity = Math.max(capacity, mSegmentStart.length * 2);
+        }
+
+        mSegmentStart = grow(mSegmentStart, capacity);
+        mSegmentRate = grow(mSegmentRate, capacity);
+        mSegmentBalance = grow(mSegmentBalance, capacity);
+        mSegmentMinimumPayment = grow(mSegmentMinimumPayment, capacity);
+        mSegmentScheduledPayment = grow(mSegmentScheduledPayment, capacity);
+        mSegmentLump = grow(mSegmentLump, capacity);
+        mSegmentTotalPaid = grow(mSegmentTotalPaid, capacity);
+        mSegmentAdditionalPaid = grow(mSegmentAdditionalPaid, capacity);
+    }
+
+    private static int[] grow(int[] array, int length)
+    {
+        int[] grown = new int[length];
+        if(array != null)
+        {
+            System.arraycopy(array, 0, grown, 0, Math.min(array.length, length));
+        }
+        return grown;
+    }
+
+    private static double[] grow(double[] array, int length)
+    {
+        double[] grown = new double[length];
+        if(array != null)
+        {
+            System.arraycopy(array, 0, grown, 0, Math.min(array.length, length));
+        }
+        return grown;
     }
 
     // /Getters and Setters
-    public Double getPrincipal()
+    public int getCalculationMode()
+    {
+        return mCalculationMode;
+    }
+
+    /**
+     * Select {@link #MODE_FLOATING_POINT} or {@link #MODE_CENTS}.
+     */
+    public void setCalculationMode(int calculationMode)
+    {
+        mCalculationMode = calculationMode;
+        mPrepared = false;
+    }
+
+    public int getPaymentFrequency()
+    {
+        return mPaymentFrequency;
+    }
+
+    /**
+     * Select one of the FREQUENCY_ constants. The term stays in months;
+     * the rate resets and lump sums count payments at this frequency.
+     */
+    public void setPaymentFrequency(int paymentFrequency)
+    {
+        mPaymentsPerYear = getPaymentsPerYear(paymentFrequency);
+        mPaymentFrequency = paymentFrequency;
+        mMaxPayments = MAX_YEARS * mPaymentsPerYear;
+        mPrepared = false;
+    }
+
+    public int getPaymentsPerYear()
+    {
+        return mPaymentsPerYear;
+    }
+
+    /**
+     * Number of payments a year made at the given frequency.
+     *
+     * @throws IllegalArgumentException
+     *             if it is not one of the FREQUENCY_ constants
+     */
+    public static int getPaymentsPerYear(int paymentFrequency)
+    {
+        switch(paymentFrequency)
+        {
+            case FREQUENCY_MONTHLY:
+                return 12;
+            case FREQUENCY_SEMI_MONTHLY:
+                return 24;
+            case FREQUENCY_BIWEEKLY:
+            case FREQUENCY_ACCELERATED_BIWEEKLY:
+                return 26;
+            case FREQUENCY_WEEKLY:
+                return 52;
+            default:
+                throw new IllegalArgumentException("Unknown payment frequency " + paymentFrequency);
+        }
+    }
+
+    public double getPrincipal()
     {
         return mPrincipal;
     }
 
-    public void setPrincipal(Double principal)
+    public void setPrincipal(double principal)
     {
         mPrincipal = principal;
+        mPrepared = false;
     }
 
-    public Double getRate()
+    public double getRate()
     {
         return mRate;
     }
 
-    public void setRate(Double rate)
+    public void setRate(double rate)
     {
         mRate = rate;
+        mPrepared = false;
     }
 
-    public Double getTerm()
+    public double getTerm()
     {
         return mTerm;
     }
 
-    public void setTerm(Double term)
+    public void setTerm(double term)
     {
         mTerm = term;
+        mPrepared = false;
+    }
+
+    public double getExtraPayment()
+    {
+        return mExtraPayment;
+    }
+
+    public void setExtraPayment(double extraPayment)
+    {
+        mExtraPayment = extraPayment;
+        mPrepared = false;
+    }
+
+    /**
+     * Rate-change terms, or null for a fixed-rate loan.
+     */
+    public AdjustableRate getAdjustableRate()
+    {
+        return mAdjustableRate;
+    }
+
+    public void setAdjustableRate(AdjustableRate adjustableRate)
+    {
+        mAdjustableRate = adjustableRate;
+        mPrepared = false;
+    }
+
+    /**
+     * Lump sums paid toward principal, empty when there are none.
+     */
+    public PrepaymentEvent[] getPrepayments()
+    {
+        return mPrepayments.clone();
+    }
+
+    public void setPrepayments(PrepaymentEvent[] prepayments)
+    {
+        mPrepayments = (prepayments == null || prepayments.length == 0) ? NO_PREPAYMENTS : prepayments.clone();
+        mPrepared = false;
     }
 }
@@ -1,20 +1,23 @@
 package com.adam.lane.amortifier;
 
-import java.text.NumberFormat;
-import java.util.Locale;
+import java.math.BigDecimal;
+import java.util.Arrays;
 
 import android.app.Activity;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.TextWatcher;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class LoanEdit extends Activity
 {
@@ -24,23 +27,75 @@ public class LoanEdit extends Activity
     private EditText mRateText;
     private EditText mTermText;
     private EditText mExtraPaymentText;
+    private EditText mLumpSumsText;
     
     private Spinner mMonthSpinner;
+    private Spinner mFrequencySpinner;
 
     private TextView mMinimumMonthlyPaymentLabel;
     private TextView mExtraMonthlyPaymentLabel;
     private TextView mTotalMonthlyPaymentLabel;
+    private TextView mPayoffLabel;
+    private TextView mTotalInterestLabel;
 
     private Long mRowId;
     private LoansDbAdapter mDbHelper;
 
+    // edits arriving closer together than this are previewed once
+    private static final long PREVIEW_DELAY_MILLIS = 150;
+
+    // fields edited since the last preview
+    private static final int FIELD_PRINCIPAL = 1;
+    private static final int FIELD_RATE = 2;
+    private static final int FIELD_TERM = 4;
+    private static final int FIELD_EXTRA = 8;
+    private static final int FIELD_LUMP_SUMS = 16;
+    private static final int ALL_FIELDS = FIELD_PRINCIPAL | FIELD_RATE | FIELD_TERM | FIELD_EXTRA | FIELD_LUMP_SUMS;
+
+    private int mDirtyFields = ALL_FIELDS;
+    private int mInvalidFields;
+
+    // last parsed value of each field
+    private double mPrincipal;
+    private double mRate;
+    private double mTerm;
+    private double mExtra;
+
+    // one of the Loan.FREQUENCY_ constants, which are also the positions in
+    // the frequency spinner
+    private int mPaymentFrequency = Loan.FREQUENCY_MONTHLY;
+
+    // rate-change terms of the stored loan, kept as they are when it is
+    // saved
+    private AdjustableRate mAdjustableRate;
+
+    // lump sums as last parsed, and as stored so an unchanged list is not
+    // rewritten
+    private PrepaymentEvent[] mPrepayments;
+    private PrepaymentEvent[] mStoredPrepayments = new PrepaymentEvent[0];
+
+    private MoneyFormatter mCurrencyFormatter;
+
+    // the preview labels keep these arrays, so each label has its own
+    private final char[] mMinimumMonthlyPaymentChars = new char[MoneyFormatter.BUFFER_LENGTH];
+    private final char[] mExtraMonthlyPaymentChars = new char[MoneyFormatter.BUFFER_LENGTH];
+    private final char[] mTotalMonthlyPaymentChars = new char[MoneyFormatter.BUFFER_LENGTH];
+    private final char[] mTotalInterestChars = new char[MoneyFormatter.BUFFER_LENGTH];
+    private final Handler mHandler = new Handler();
+    private final Runnable mPreviewRunnable = new Runnable()
+    {
+        public void run()
+        {
+            updatePreview();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
 
-        mDbHelper = new LoansDbAdapter(this);
-        mDbHelper.open();
+        mDbHelper = ((AmortifierApplication) getApplication()).getLoansDb();
 
         setContentView(R.layout.loan_edit);
         setTitle(R.string.edit_loan);
@@ -49,12 +104,18 @@ public class LoanEdit extends Activity
         mRateText = (EditText) findViewById(R.id.rateEditText);
         mTermText = (EditText) findViewById(R.id.termEditText);
         mExtraPaymentText = (EditText) findViewById(R.id.extraMonthlyPaymentEditText);
+        mLumpSumsText = (EditText) findViewById(R.id.lumpSumsEditText);
         
         mMonthSpinner = (Spinner)findViewById(R.id.monthSpinner);
+        mFrequencySpinner = (Spinner) findViewById(R.id.frequencySpinner);
 
         mMinimumMonthlyPaymentLabel = (TextView) findViewById(R.id.minimumMonthlyLabel);
         mExtraMonthlyPaymentLabel = (TextView) findViewById(R.id.extraMonthlyLabel);
         mTotalMonthlyPaymentLabel = (TextView) findViewById(R.id.totalMonthlyLabel);
+        mPayoffLabel = (TextView) findViewById(R.id.payoffLabel);
+        mTotalInterestLabel = (TextView) findViewById(R.id.totalInterestLabel);
+
+        mCurrencyFormatter = MoneyFormatter.getInstance();
 
         Button confirmButton = (Button) findViewById(R.id.confirm);
         Button cancelButton = (Button) findViewById(R.id.cancel);
@@ -64,6 +125,11 @@ public class LoanEdit extends Activity
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         mMonthSpinner.setAdapter(adapter);
 
+        ArrayAdapter<CharSequence> frequencyAdapter = ArrayAdapter.createFromResource(this, R.array.frequencySpinnerOptions,
+                android.R.layout.simple_spinner_item);
+        frequencyAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        mFrequencySpinner.setAdapter(frequencyAdapter);
+
 
         // get rowId from bundle
         mRowId = (savedInstanceState == null) ? null : (Long) savedInstanceState.getSerializable(LoansDbAdapter.KEY_ROWID);
@@ -90,9 +156,15 @@ public class LoanEdit extends Activity
         {
             public void onClick(View view)
             {
-                saveState();
-                setResult(RESULT_OK);
-                finish();
+                if(saveState())
+                {
+                    setResult(RESULT_OK);
+                    finish();
+                }
+                else
+                {
+                    Toast.makeText(getApplicationContext(), R.string.invalid_loan, Toast.LENGTH_SHORT).show();
+                }
             }
         });
         cancelButton.setOnClickListener(new View.OnClickListener()
@@ -110,69 +182,64 @@ public class LoanEdit extends Activity
         mExtraPaymentText.setFilters(new InputFilter[] { new MoneyInputFilter() });
 
         // add on-changed listeners
-        mPrincipalText.addTextChangedListener(new TextWatcher()
+        mPrincipalText.addTextChangedListener(new FieldWatcher(FIELD_PRINCIPAL));
+        mRateText.addTextChangedListener(new FieldWatcher(FIELD_RATE));
+        mTermText.addTextChangedListener(new FieldWatcher(FIELD_TERM));
+        mExtraPaymentText.addTextChangedListener(new FieldWatcher(FIELD_EXTRA));
+        mLumpSumsText.addTextChangedListener(new FieldWatcher(FIELD_LUMP_SUMS));
+        mFrequencySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener()
         {
-            public void afterTextChanged(Editable s)
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id)
             {
-                getMonthlyPayment();
+                if(position != mPaymentFrequency)
+                {
+                    mPaymentFrequency = position;
+                    updatePreview();
+                }
             }
 
-            public void beforeTextChanged(CharSequence s, int start, int count, int after)
-            {
-            }
-
-            public void onTextChanged(CharSequence s, int start, int before, int count)
+            public void onNothingSelected(AdapterView<?> parent)
             {
             }
         });
-        mRateText.addTextChangedListener(new TextWatcher()
-        {
-            public void afterTextChanged(Editable s)
-            {
-                getMonthlyPayment();
-            }
 
-            public void beforeTextChanged(CharSequence s, int start, int count, int after)
-            {
-            }
+        // fill the preview straight away
+        mDirtyFields = ALL_FIELDS;
+        updatePreview();
+    }
 
-            public void onTextChanged(CharSequence s, int start, int before, int count)
-            {
-            }
-        });
-        mTermText.addTextChangedListener(new TextWatcher()
-        {
-            public void afterTextChanged(Editable s)
-            {
-                getMonthlyPayment();
-            }
+    @Override
+    protected void onDestroy()
+    {
+        mHandler.removeCallbacks(mPreviewRunnable);
+        super.onDestroy();
+    }
 
-            public void beforeTextChanged(CharSequence s, int start, int count, int after)
-            {
-            }
+    // marks its field dirty and (re)schedules the preview, so a burst of
+    // keystrokes costs one preview
+    private class FieldWatcher implements TextWatcher
+    {
+        private final int mField;
 
-            public void onTextChanged(CharSequence s, int start, int before, int count)
-            {
-            }
-        });
-        mExtraPaymentText.addTextChangedListener(new TextWatcher()
+        FieldWatcher(int field)
         {
-            public void afterTextChanged(Editable s)
-            {
-                getMonthlyPayment();
-            }
+            mField = field;
+        }
 
-            public void beforeTextChanged(CharSequence s, int start, int count, int after)
-            {
-            }
+        public void afterTextChanged(Editable s)
+        {
+            mDirtyFields |= mField;
+            mHandler.removeCallbacks(mPreviewRunnable);
+            mHandler.postDelayed(mPreviewRunnable, PREVIEW_DELAY_MILLIS);
+        }
 
-            public void onTextChanged(CharSequence s, int start, int before, int count)
-            {
-            }
-        });
+        public void beforeTextChanged(CharSequence s, int start, int count, int after)
+        {
+        }
 
-        // fire the monthly payment function
-        getMonthlyPayment();
+        public void onTextChanged(CharSequence s, int start, int before, int count)
+        {
+        }
     }
 
     private void populateFields()
@@ -181,13 +248,36 @@ public class LoanEdit extends Activity
         {
             Cursor loan = mDbHelper.fetchLoan(mRowId);
             startManagingCursor(loan);
-            mPrincipalText.setText(loan.getString(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_PRINCIPAL)));
-            mRateText.setText(loan.getString(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_RATE)));
-            mTermText.setText(loan.getString(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_TERM)));
-            mExtraPaymentText.setText(loan.getString(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_EXTRA_MONTHLY_PAYMENT)));
+            mPrincipalText.setText(centsToText(loan.getLong(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_PRINCIPAL))));
+            mRateText.setText(numberToText(loan.getDouble(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_RATE))));
+            mTermText.setText(numberToText(loan.getDouble(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_TERM))));
+
+            // no extra payment leaves the field empty, as for a new loan
+            long extraCents = loan.getLong(loan.getColumnIndexOrThrow(LoansDbAdapter.KEY_EXTRA_MONTHLY_PAYMENT));
+            mExtraPaymentText.setText((extraCents == 0) ? "" : centsToText(extraCents));
+
+            mPaymentFrequency = LoansDbAdapter.getPaymentFrequency(loan);
+            mFrequencySpinner.setSelection(mPaymentFrequency);
+
+            mAdjustableRate = LoansDbAdapter.getAdjustableRate(loan);
+            mStoredPrepayments = mDbHelper.fetchPrepayments(mRowId);
+            StringBuilder lumpSums = new StringBuilder();
+            LoansDbAdapter.appendPrepayments(lumpSums, mStoredPrepayments);
+            mLumpSumsText.setText(lumpSums);
         }
     }
 
+    // plain decimal text the input filters accept, without grouping or exponent
+    private static String centsToText(long cents)
+    {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+
+    private static String numberToText(double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState)
     {
@@ -204,17 +294,26 @@ public class LoanEdit extends Activity
         mTitle = (String) inState.getSerializable(getString(R.string.title));
     }
 
-    private void saveState()
+    // returns false without saving when a field does not hold a number
+    private boolean saveState()
     {
         String title = mTitle;
-        String principal = mPrincipalText.getText().toString();
-        String rate = mRateText.getText().toString();
-        String term = mTermText.getText().toString();
-        String extra = mExtraPaymentText.getText().toString();
+
+        // parse every field now, the preview may not have seen the last edit
+        long principal = LoansDbAdapter.toCents(parseField(mPrincipalText, 0, FIELD_PRINCIPAL));
+        double rate = parseField(mRateText, 0, FIELD_RATE);
+        double term = parseField(mTermText, 1, FIELD_TERM);
+        long extra = LoansDbAdapter.toCents(parseField(mExtraPaymentText, 0, FIELD_EXTRA));
+        PrepaymentEvent[] prepayments = parseLumpSums();
+
+        if(mInvalidFields != 0)
+        {
+            return false;
+        }
 
         if(mRowId == null)
         {
-            long id = mDbHelper.createLoan(title, principal, rate, term, extra);
+            long id = mDbHelper.createLoan(title, principal, rate, term, extra, mPaymentFrequency, mAdjustableRate);
             if(id > 0)
             {
                 mRowId = id;
@@ -223,47 +322,94 @@ public class LoanEdit extends Activity
         else
         {
             //TODO: update the true
-            mDbHelper.updateLoan(mRowId, principal, rate, term, true, extra);
+            mDbHelper.updateLoan(mRowId, principal, rate, term, true, extra, mPaymentFrequency, mAdjustableRate);
+        }
+
+        // also recomputes the stored summary with the new lump sums
+        if(mRowId != null && !Arrays.equals(prepayments, mStoredPrepayments))
+        {
+            mDbHelper.setPrepayments(mRowId, prepayments);
+            mStoredPrepayments = prepayments;
         }
+        return true;
     }
 
-    private void getMonthlyPayment()
+    private void updatePreview()
+    {
+        mHandler.removeCallbacks(mPreviewRunnable);
+
+        // only re-parse the fields that changed, initialize to 0 or 1 if empty
+        if((mDirtyFields & FIELD_PRINCIPAL) != 0)
+        {
+            mPrincipal = parseField(mPrincipalText, 0, FIELD_PRINCIPAL);
+        }
+        if((mDirtyFields & FIELD_RATE) != 0)
+        {
+            mRate = parseField(mRateText, 0, FIELD_RATE) / 100;
+        }
+        if((mDirtyFields & FIELD_TERM) != 0)
+        {
+            mTerm = parseField(mTermText, 1, FIELD_TERM);
+        }
+        if((mDirtyFields & FIELD_EXTRA) != 0)
+        {
+            mExtra = parseField(mExtraPaymentText, 0, FIELD_EXTRA);
+        }
+        if((mDirtyFields & FIELD_LUMP_SUMS) != 0)
+        {
+            mPrepayments = parseLumpSums();
+        }
+        mDirtyFields = 0;
+
+        if(mInvalidFields != 0)
+        {
+            // leave the last good preview up until the input parses again
+            return;
+        }
+
+        // summary comes from the cache when these values were seen before
+        LoanSummary summary = ScheduleCache.getSummary(mPrincipal, mRate, mTerm, mExtra, mPaymentFrequency, mAdjustableRate,
+                mPrepayments);
+        double monthlyPayment = summary.getMonthlyPayment();
+
+        // fill labels
+        mMinimumMonthlyPaymentLabel.setText(mMinimumMonthlyPaymentChars, 0, mCurrencyFormatter.format(monthlyPayment, mMinimumMonthlyPaymentChars));
+        mExtraMonthlyPaymentLabel.setText(mExtraMonthlyPaymentChars, 0, mCurrencyFormatter.format(mExtra, mExtraMonthlyPaymentChars));
+        mTotalMonthlyPaymentLabel.setText(mTotalMonthlyPaymentChars, 0, mCurrencyFormatter.format(monthlyPayment + mExtra,
+                mTotalMonthlyPaymentChars));
+        mPayoffLabel.setText(getString(R.string.payoff_payments, summary.getPaymentCount()));
+        mTotalInterestLabel.setText(mTotalInterestChars, 0, mCurrencyFormatter.format(summary.getTotalInterestPaid(), mTotalInterestChars));
+    }
+
+    private PrepaymentEvent[] parseLumpSums()
     {
         try
         {
-            // get data from widgets, initialize to 0 or 1 if empty
-            String principalStr = mPrincipalText.getText().toString();
-            principalStr = (principalStr.length() == 0) ? "0" : principalStr;
-            String rateStr = mRateText.getText().toString();
-            rateStr = (rateStr.length() == 0) ? "0" : rateStr;
-            String termStr = mTermText.getText().toString();
-            termStr = (termStr.length() == 0) ? "1" : termStr;
-            String extraPaymentStr = mExtraPaymentText.getText().toString();
-            extraPaymentStr = (extraPaymentStr.length() == 0) ? "0" : extraPaymentStr;
-
-            // convert to number
-            Double principal = Double.parseDouble(principalStr);
-            Double rate = Double.parseDouble(rateStr) / 100;
-            Double term = Double.parseDouble(termStr);
-            Double extra = Double.parseDouble(extraPaymentStr);
-
-            // create loan object and get monthly payment
-            Loan loan = new Loan(principal, rate, term);
-            Double monthlyPayment = loan.getMonthlyPayment();
-
-            // create string formatter
-            Locale currentLocale = Locale.getDefault();
-            NumberFormat currencyFormatter = NumberFormat.getCurrencyInstance(currentLocale);
-
-            // fill labels
-            mMinimumMonthlyPaymentLabel.setText(currencyFormatter.format(monthlyPayment));
-            mExtraMonthlyPaymentLabel.setText(currencyFormatter.format(extra));
-            mTotalMonthlyPaymentLabel.setText(currencyFormatter.format(monthlyPayment + extra));
+            PrepaymentEvent[] prepayments = LoansDbAdapter.parsePrepayments(mLumpSumsText.getText().toString());
+            mInvalidFields &= ~FIELD_LUMP_SUMS;
+            return prepayments;
+        }
+        catch(IllegalArgumentException e)
+        {
+            // also covers NumberFormatException
+            mInvalidFields |= FIELD_LUMP_SUMS;
+            return mPrepayments;
+        }
+    }
 
+    private double parseField(EditText field, double emptyValue, int fieldBit)
+    {
+        String text = field.getText().toString();
+        try
+        {
+            double value = (text.length() == 0) ? emptyValue : Double.parseDouble(text);
+            mInvalidFields &= ~fieldBit;
+            return value;
         }
         catch(NumberFormatException e)
         {
-            // no need to catch NumberFormatExceptions... just ignore them
+            mInvalidFields |= fieldBit;
+            return emptyValue;
         }
     }
 }
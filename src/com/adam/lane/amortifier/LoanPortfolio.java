@@ -0,0 +1,283 @@
+package com.adam.lane.amortifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.database.Cursor;
+
+/**
+ * Aggregates every stored loan into portfolio totals. The loan rows are
+ * read into primitive arrays on the calling thread, then split into chunks
+ * that are summarized in parallel, one worker per core.
+ */
+public class LoanPortfolio
+{
+    // below this many loans the thread hand-off costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    // chunks per worker, so an uneven chunk does not leave cores idle
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final int MONTHS_PER_YEAR = 12;
+
+    private static ExecutorService sExecutor;
+
+    /**
+     * Combined figures for a set of loans.
+     */
+    public static class Totals
+    {
+        private int mLoanCount;
+        private int mInvalidCount;
+        private double mMonthlyPayment;
+        private double mTotalPaid;
+        private double mTotalInterestPaid;
+        private int mLatestPayoff;
+
+        private void merge(Totals other)
+        {
+            mLoanCount += other.mLoanCount;
+            mInvalidCount += other.mInvalidCount;
+            mMonthlyPayment += other.mMonthlyPayment;
+            mTotalPaid += other.mTotalPaid;
+            mTotalInterestPaid += other.mTotalInterestPaid;
+            mLatestPayoff = Math.max(mLatestPayoff, other.mLatestPayoff);
+        }
+
+        // getters to access data
+        public int getLoanCount()
+        {
+            return mLoanCount;
+        }
+
+        public int getInvalidCount()
+        {
+            return mInvalidCount;
+        }
+
+        /**
+         * Combined monthly obligation, including extra payments. Loans paid
+         * at another frequency count what their payments add up to per
+         * month.
+         */
+        public double getMonthlyPayment()
+        {
+            return mMonthlyPayment;
+        }
+
+        public double getTotalPaid()
+        {
+            return mTotalPaid;
+        }
+
+        public double getTotalInterestPaid()
+        {
+            return mTotalInterestPaid;
+        }
+
+        /**
+         * Months until the last loan in the portfolio is paid off, rounded
+         * up for loans that are not paid monthly.
+         */
+        public int getLatestPayoff()
+        {
+            return mLatestPayoff;
+        }
+    }
+
+    private LoanPortfolio()
+    {
+    }
+
+    /**
+     * Summarize every loan in the cursor, e.g. from
+     * {@link LoansDbAdapter#fetchAllLoans()}, with the lump sums from
+     * {@link LoansDbAdapter#fetchAllPrepayments()}. The cursors are read but
+     * not closed. Rows without a term are counted as invalid and skipped.
+     * 
+     * @return the totals, or null if the thread was interrupted before they
+     *         were complete
+     */
+    public static Totals compute(Cursor loans, Cursor prepayments)
+    {
+        HashMap<Long, PrepaymentEvent[]> prepaymentsByLoan = readPrepayments(prepayments);
+
+        int count = loans.getCount();
+        final double[] principal = new double[count];
+        final double[] rate = new double[count];
+        final double[] term = new double[count];
+        final double[] extra = new double[count];
+        final int[] paymentFrequencies = new int[count];
+        final AdjustableRate[] adjustableRates = new AdjustableRate[count];
+        final PrepaymentEvent[][] loanPrepayments = new PrepaymentEvent[count][];
+        int invalid = 0;
+
+        int idColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_ROWID);
+        int principalColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_PRINCIPAL);
+        int rateColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_RATE);
+        int termColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_TERM);
+        int extraColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_EXTRA_MONTHLY_PAYMENT);
+        int frequencyColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_PAYMENT_FREQUENCY);
+
+        int n = 0;
+        for(boolean more = loans.moveToFirst(); more; more = loans.moveToNext())
+        {
+            term[n] = loans.getDouble(termColumn);
+
+            // values that did not convert during an upgrade are stored as 0
+            if(term[n] <= 0)
+            {
+                invalid++;
+                continue;
+            }
+
+            principal[n] = LoansDbAdapter.fromCents(loans.getLong(principalColumn));
+            rate[n] = loans.getDouble(rateColumn) / 100;
+            extra[n] = LoansDbAdapter.fromCents(loans.getLong(extraColumn));
+            paymentFrequencies[n] = loans.getInt(frequencyColumn);
+            adjustableRates[n] = LoansDbAdapter.getAdjustableRate(loans);
+            loanPrepayments[n] = prepaymentsByLoan.get(loans.getLong(idColumn));
+            n++;
+        }
+
+        Totals totals = compute(principal, rate, term, extra, paymentFrequencies, adjustableRates, loanPrepayments, n);
+        if(totals != null)
+        {
+            totals.mInvalidCount += invalid;
+        }
+        return totals;
+    }
+
+    // group the lump sums by loan; the cursor is ordered by loan
+    private static HashMap<Long, PrepaymentEvent[]> readPrepayments(Cursor prepayments)
+    {
+        HashMap<Long, PrepaymentEvent[]> byLoan = new HashMap<Long, PrepaymentEvent[]>();
+        List<PrepaymentEvent> events = new ArrayList<PrepaymentEvent>();
+        long loanId = 0;
+
+        for(boolean more = prepayments.moveToFirst(); more; more = prepayments.moveToNext())
+        {
+            long id = prepayments.getLong(0);
+            if(id != loanId && !events.isEmpty())
+            {
+                byLoan.put(loanId, events.toArray(new PrepaymentEvent[events.size()]));
+                events.clear();
+            }
+            loanId = id;
+            events.add(new PrepaymentEvent(prepayments.getInt(1), LoansDbAdapter.fromCents(prepayments.getLong(2)), prepayments.getInt(3)));
+        }
+        if(!events.isEmpty())
+        {
+            byLoan.put(loanId, events.toArray(new PrepaymentEvent[events.size()]));
+        }
+        return byLoan;
+    }
+
+    /**
+     * Summarize the first {@code count} loans described by the parallel
+     * arrays. Rates are fractions, terms are in months, frequencies are
+     * Loan.FREQUENCY_ constants, fixed-rate loans have a null adjustable
+     * rate and loans without lump sums may have null prepayments.
+     * 
+     * @return the totals, or null if the thread was interrupted while the
+     *         chunks were being summarized; the interrupt is left set
+     */
+    public static Totals compute(final double[] principal, final double[] rate, final double[] term, final double[] extra,
+            final int[] paymentFrequencies, final AdjustableRate[] adjustableRates, final PrepaymentEvent[][] prepayments, int count)
+    {
+        if(count < PARALLEL_THRESHOLD || THREAD_COUNT == 1)
+        {
+            return computeRange(principal, rate, term, extra, paymentFrequencies, adjustableRates, prepayments, 0, count);
+        }
+
+        int chunks = Math.min(THREAD_COUNT * CHUNKS_PER_THREAD, count);
+        List<Future<Totals>> results = new ArrayList<Future<Totals>>(chunks);
+        ExecutorService executor = getExecutor();
+
+        for(int i = 0; i < chunks; i++)
+        {
+            final int start = (int) ((long) count * i / chunks);
+            final int end = (int) ((long) count * (i + 1) / chunks);
+            results.add(executor.submit(new Callable<Totals>()
+            {
+                public Totals call()
+                {
+                    return computeRange(principal, rate, term, extra, paymentFrequencies, adjustableRates, prepayments, start, end);
+                }
+            }));
+        }
+
+        Totals totals = new Totals();
+        try
+        {
+            for(Future<Totals> result : results)
+            {
+                totals.merge(result.get());
+            }
+        }
+        catch(InterruptedException e)
+        {
+            // partial totals would pass for the real ones
+            for(Future<Totals> result : results)
+            {
+                result.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+        return totals;
+    }
+
+    private static Totals computeRange(double[] principal, double[] rate, double[] term, double[] extra, int[] paymentFrequencies,
+            AdjustableRate[] adjustableRates, PrepaymentEvent[][] prepayments, int start, int end)
+    {
+        Totals totals = new Totals();
+        for(int i = start; i < end; i++)
+        {
+            Loan loan = new Loan(principal[i], rate[i], term[i], extra[i]);
+            loan.setPaymentFrequency(paymentFrequencies[i]);
+            loan.setAdjustableRate(adjustableRates[i]);
+            loan.setPrepayments(prepayments[i]);
+            int payments = loan.getPaymentCount();
+            int paymentsPerYear = loan.getPaymentsPerYear();
+
+            // payments at other frequencies are brought to months
+            totals.mLoanCount++;
+            totals.mMonthlyPayment += (payments > 0) ? (loan.getMonthlyPayment() + extra[i]) * paymentsPerYear / MONTHS_PER_YEAR : 0;
+            totals.mTotalPaid += loan.getTotalPaid();
+            totals.mTotalInterestPaid += loan.getTotalInterestPaid();
+            totals.mLatestPayoff = Math.max(totals.mLatestPayoff, (payments * MONTHS_PER_YEAR + paymentsPerYear - 1) / paymentsPerYear);
+        }
+        return totals;
+    }
+
+    private static synchronized ExecutorService getExecutor()
+    {
+        if(sExecutor == null)
+        {
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "LoanPortfolio");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
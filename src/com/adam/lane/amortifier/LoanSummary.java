@@ -0,0 +1,42 @@
+package com.adam.lane.amortifier;
+
+/**
+ * Totals for a loan that the screens show without looking at individual
+ * rows of the amortization table.
+ */
+public class LoanSummary
+{
+    private final double mMonthlyPayment;
+    private final double mTotalPaid;
+    private final double mTotalInterestPaid;
+    private final int mPaymentCount;
+
+    public LoanSummary(Loan loan)
+    {
+        mMonthlyPayment = loan.getMonthlyPayment();
+        mTotalPaid = loan.getTotalPaid();
+        mTotalInterestPaid = loan.getTotalInterestPaid();
+        mPaymentCount = loan.getPaymentCount();
+    }
+
+    // getters to access data
+    public double getMonthlyPayment()
+    {
+        return mMonthlyPayment;
+    }
+
+    public double getTotalPaid()
+    {
+        return mTotalPaid;
+    }
+
+    public double getTotalInterestPaid()
+    {
+        return mTotalInterestPaid;
+    }
+
+    public int getPaymentCount()
+    {
+        return mPaymentCount;
+    }
+}
@@ -1,11 +1,18 @@
 package com.adam.lane.amortifier;
 
-import android.content.ContentValues;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -28,6 +35,34 @@ public class LoansDbAdapter
     public static final String KEY_TERM_IN_MONTHS = "termMonths";
     public static final String KEY_EXTRA_MONTHLY_PAYMENT = "extra";
 
+    // one of the Loan.FREQUENCY_ constants; the extra payment is made with
+    // each payment at this frequency
+    public static final String KEY_PAYMENT_FREQUENCY = "paymentFrequency";
+
+    // rate-change terms of an adjustable-rate loan, see AdjustableRate; a
+    // fixed-rate loan has 0 fixed payments. Rates are percentages like rate
+    public static final String KEY_ARM_FIXED_PAYMENTS = "armFixedPayments";
+    public static final String KEY_ARM_ADJUSTMENT_INTERVAL = "armInterval";
+    public static final String KEY_ARM_INDEXED_RATE = "armIndexedRate";
+    public static final String KEY_ARM_PERIODIC_CAP = "armPeriodicCap";
+    public static final String KEY_ARM_LIFETIME_CAP = "armLifetimeCap";
+
+    // lump sums, see PrepaymentEvent; each row belongs to the loan whose
+    // _id is in loanId, and the amount is in cents
+    public static final String KEY_LOAN_ID = "loanId";
+    public static final String KEY_PREPAYMENT_FIRST_PAYMENT = "firstPayment";
+    public static final String KEY_PREPAYMENT_AMOUNT = "amount";
+    public static final String KEY_PREPAYMENT_INTERVAL = "repeatInterval";
+
+    // the lump sums of a loan as one CSV field, see parsePrepayments
+    public static final String KEY_PREPAYMENTS = "prepayments";
+
+    // derived from the columns above whenever a loan is written
+    public static final String KEY_MONTHLY_PAYMENT = "monthlyPayment";
+    public static final String KEY_TOTAL_PAID = "totalPaid";
+    public static final String KEY_TOTAL_INTEREST = "totalInterest";
+    public static final String KEY_PAYMENT_COUNT = "paymentCount";
+
     public static final String KEY_ROWID = "_id";
 
     private static final String TAG = "LoansDbAdapter";
@@ -39,12 +74,120 @@ public class LoansDbAdapter
      */
     private static final String DATABASE_NAME = "data";
     private static final String DATABASE_TABLE = "loans";
-    private static final int DATABASE_VERSION = 4;
+    private static final String PREPAYMENTS_TABLE = "prepayments";
+    private static final int DATABASE_VERSION = 9;
+
+    // added in version 7, so also needed by the upgrade
+    private static final String[] ADJUSTABLE_RATE_COLUMN_DEFINITIONS = new String[] { KEY_ARM_FIXED_PAYMENTS + " integer not null DEFAULT 0",
+            KEY_ARM_ADJUSTMENT_INTERVAL + " integer not null DEFAULT 0", KEY_ARM_INDEXED_RATE + " real not null DEFAULT 0",
+            KEY_ARM_PERIODIC_CAP + " real not null DEFAULT 0", KEY_ARM_LIFETIME_CAP + " real not null DEFAULT 0" };
+
+    // added in version 9, existing loans are monthly
+    private static final String PAYMENT_FREQUENCY_COLUMN_DEFINITION = KEY_PAYMENT_FREQUENCY + " integer not null DEFAULT "
+            + Loan.FREQUENCY_MONTHLY;
+
+    // money columns hold whole cents, rate is the annual percentage as
+    // entered and term is in months or years
+    private static final String DATABASE_CREATE = createTableSql(DATABASE_TABLE);
+
+    private static final String PREPAYMENTS_CREATE = "create table " + PREPAYMENTS_TABLE + " (_id integer primary key autoincrement, "
+            + KEY_LOAN_ID + " integer not null, " + KEY_PREPAYMENT_FIRST_PAYMENT + " integer not null, " + KEY_PREPAYMENT_AMOUNT
+            + " integer not null, " + KEY_PREPAYMENT_INTERVAL + " integer not null DEFAULT 0);";
+
+    private static final String PREPAYMENTS_INDEX_CREATE = "create index " + PREPAYMENTS_TABLE + "_" + KEY_LOAN_ID + " on " + PREPAYMENTS_TABLE
+            + " (" + KEY_LOAN_ID + ");";
+
+    private static String createTableSql(String table)
+    {
+        return "create table " + table + " (_id integer primary key autoincrement, " + KEY_TITLE + " text not null DEFAULT '0', "
+                + KEY_PRINCIPAL + " integer not null DEFAULT 0, " + KEY_RATE + " real not null DEFAULT 0, " + KEY_TERM
+                + " real not null DEFAULT 0, " + KEY_EXTRA_MONTHLY_PAYMENT + " integer not null DEFAULT 0, " + KEY_TERM_IN_MONTHS
+                + " integer no null DEFAULT '1', " + KEY_MONTHLY_PAYMENT + " real, " + KEY_TOTAL_PAID + " real, " + KEY_TOTAL_INTEREST + " real, "
+                + KEY_PAYMENT_COUNT + " integer, " + joinColumns(ADJUSTABLE_RATE_COLUMN_DEFINITIONS) + ", " + PAYMENT_FREQUENCY_COLUMN_DEFINITION
+                + ");";
+    }
+
+    private static final String[] LOAN_COLUMNS = new String[] { KEY_ROWID, KEY_TITLE, KEY_PRINCIPAL, KEY_RATE, KEY_TERM, KEY_TERM_IN_MONTHS,
+            KEY_EXTRA_MONTHLY_PAYMENT, KEY_MONTHLY_PAYMENT, KEY_TOTAL_PAID, KEY_TOTAL_INTEREST, KEY_PAYMENT_COUNT, KEY_ARM_FIXED_PAYMENTS,
+            KEY_ARM_ADJUSTMENT_INTERVAL, KEY_ARM_INDEXED_RATE, KEY_ARM_PERIODIC_CAP, KEY_ARM_LIFETIME_CAP, KEY_PAYMENT_FREQUENCY };
+
+    private static final String ADJUSTABLE_RATE_COLUMNS = KEY_ARM_FIXED_PAYMENTS + ", " + KEY_ARM_ADJUSTMENT_INTERVAL + ", "
+            + KEY_ARM_INDEXED_RATE + ", " + KEY_ARM_PERIODIC_CAP + ", " + KEY_ARM_LIFETIME_CAP;
+
+    /**
+     * Parameterized statements, compiled once per open adapter
+     */
+    private static final String SUMMARY_ASSIGNMENTS = KEY_MONTHLY_PAYMENT + "=?, " + KEY_TOTAL_PAID + "=?, " + KEY_TOTAL_INTEREST + "=?, "
+            + KEY_PAYMENT_COUNT + "=?";
+
+    private static final String INSERT_LOAN_SQL = "INSERT INTO " + DATABASE_TABLE + " (" + KEY_TITLE + ", " + KEY_PRINCIPAL + ", " + KEY_RATE
+            + ", " + KEY_TERM + ", " + KEY_TERM_IN_MONTHS + ", " + KEY_EXTRA_MONTHLY_PAYMENT + ", " + KEY_PAYMENT_FREQUENCY + ", "
+            + ADJUSTABLE_RATE_COLUMNS + ", " + KEY_MONTHLY_PAYMENT + ", " + KEY_TOTAL_PAID + ", " + KEY_TOTAL_INTEREST + ", " + KEY_PAYMENT_COUNT
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE_LOAN_SQL = "UPDATE " + DATABASE_TABLE + " SET " + KEY_PRINCIPAL + "=?, " + KEY_RATE + "=?, " + KEY_TERM
+            + "=?, " + KEY_TERM_IN_MONTHS + "=?, " + KEY_EXTRA_MONTHLY_PAYMENT + "=?, " + KEY_PAYMENT_FREQUENCY + "=?, "
+            + KEY_ARM_FIXED_PAYMENTS + "=?, " + KEY_ARM_ADJUSTMENT_INTERVAL + "=?, " + KEY_ARM_INDEXED_RATE + "=?, " + KEY_ARM_PERIODIC_CAP
+            + "=?, " + KEY_ARM_LIFETIME_CAP + "=?, " + SUMMARY_ASSIGNMENTS + " WHERE " + KEY_ROWID + "=?";
 
-    private static final String DATABASE_CREATE = "create table " + DATABASE_TABLE + " (_id integer primary key autoincrement, " + KEY_TITLE
-            + " text not null DEFAULT '0', " + KEY_PRINCIPAL + " text not null DEFAULT '0', " + KEY_RATE + " text not null DEFAULT '0', " + KEY_TERM
-            + " text not null DEFAULT '0', " + KEY_EXTRA_MONTHLY_PAYMENT + " text not null DEFAULT '0', " + KEY_TERM_IN_MONTHS
-            + " integer no null DEFAULT '1');";
+    private static final String UPDATE_SUMMARY_SQL = "UPDATE " + DATABASE_TABLE + " SET " + SUMMARY_ASSIGNMENTS + " WHERE " + KEY_ROWID + "=?";
+
+    private static final String RENAME_LOAN_SQL = "UPDATE " + DATABASE_TABLE + " SET " + KEY_TITLE + "=? WHERE " + KEY_ROWID + "=?";
+
+    private static final String DELETE_LOAN_SQL = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + "=?";
+
+    private static final String INSERT_PREPAYMENT_SQL = "INSERT INTO " + PREPAYMENTS_TABLE + " (" + KEY_LOAN_ID + ", "
+            + KEY_PREPAYMENT_FIRST_PAYMENT + ", " + KEY_PREPAYMENT_AMOUNT + ", " + KEY_PREPAYMENT_INTERVAL + ") VALUES (?, ?, ?, ?)";
+
+    private static final String DELETE_PREPAYMENTS_SQL = "DELETE FROM " + PREPAYMENTS_TABLE + " WHERE " + KEY_LOAN_ID + "=?";
+
+    // rows touched by the last UPDATE or DELETE on this connection
+    private static final String CHANGES_SQL = "SELECT changes()";
+
+    // cursors cannot come from a SQLiteStatement, but constant SQL with bound
+    // arguments is only compiled once by the connection's statement cache
+    private static final String FETCH_LOAN_SQL = "SELECT " + joinColumns(LOAN_COLUMNS) + " FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID
+            + "=?";
+
+    private static final String PREPAYMENT_COLUMNS = KEY_PREPAYMENT_FIRST_PAYMENT + ", " + KEY_PREPAYMENT_AMOUNT + ", " + KEY_PREPAYMENT_INTERVAL;
+
+    private static final String FETCH_PREPAYMENTS_SQL = "SELECT " + PREPAYMENT_COLUMNS + " FROM " + PREPAYMENTS_TABLE + " WHERE " + KEY_LOAN_ID
+            + "=? ORDER BY " + KEY_PREPAYMENT_FIRST_PAYMENT;
+
+    /**
+     * Columns of the CSV read by importLoans and written by exportLoans
+     */
+    public static final String[] CSV_COLUMNS = new String[] { KEY_TITLE, KEY_PRINCIPAL, KEY_RATE, KEY_TERM, KEY_TERM_IN_MONTHS,
+            KEY_EXTRA_MONTHLY_PAYMENT, KEY_ARM_FIXED_PAYMENTS, KEY_ARM_ADJUSTMENT_INTERVAL, KEY_ARM_INDEXED_RATE, KEY_ARM_PERIODIC_CAP,
+            KEY_ARM_LIFETIME_CAP, KEY_PAYMENT_FREQUENCY, KEY_PREPAYMENTS };
+
+    // files written before adjustable rates end after the extra payment,
+    // files written before payment frequencies after the lifetime cap,
+    // files written before lump sums after the frequency
+    private static final int CSV_FIXED_RATE_COLUMN_COUNT = 6;
+    private static final int CSV_MONTHLY_COLUMN_COUNT = 11;
+    private static final int CSV_NO_PREPAYMENTS_COLUMN_COUNT = 12;
+
+    // the loans table columns read by exportLoans: the CSV columns stored
+    // in it, then the rowId to match each loan with its lump sums
+    private static final String[] CSV_EXPORT_COLUMNS = new String[] { KEY_TITLE, KEY_PRINCIPAL, KEY_RATE, KEY_TERM, KEY_TERM_IN_MONTHS,
+            KEY_EXTRA_MONTHLY_PAYMENT, KEY_ARM_FIXED_PAYMENTS, KEY_ARM_ADJUSTMENT_INTERVAL, KEY_ARM_INDEXED_RATE, KEY_ARM_PERIODIC_CAP,
+            KEY_ARM_LIFETIME_CAP, KEY_PAYMENT_FREQUENCY, KEY_ROWID };
+
+    // rows per import transaction; large enough to amortize the journal
+    // write, small enough that progress is reported often
+    private static final int IMPORT_BATCH_SIZE = 500;
+
+    private static final int CSV_BUFFER_SIZE = 8192;
+
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateStatement;
+    private SQLiteStatement mRenameStatement;
+    private SQLiteStatement mDeleteStatement;
+    private SQLiteStatement mSummaryStatement;
+    private SQLiteStatement mInsertPrepaymentStatement;
+    private SQLiteStatement mDeletePrepaymentsStatement;
+    private SQLiteStatement mChangesStatement;
 
     private final Context mCtx;
 
@@ -60,26 +203,218 @@ public class LoansDbAdapter
         public void onCreate(SQLiteDatabase db)
         {
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(PREPAYMENTS_CREATE);
+            db.execSQL(PREPAYMENTS_INDEX_CREATE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
         {
+            // versions before 4 predate the current columns and have no
+            // migration path
+            if(oldVersion < 4)
+            {
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + PREPAYMENTS_TABLE);
+                onCreate(db);
+                return;
+            }
 
-            if(oldVersion == 4 && newVersion == 5)
+            // each step moves the schema up one version; the helper runs the
+            // whole upgrade in a single transaction
+            if(oldVersion < 5)
+            {
+                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_MONTHLY_PAYMENT + " real");
+                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_TOTAL_PAID + " real");
+                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_TOTAL_INTEREST + " real");
+                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_PAYMENT_COUNT + " integer");
+            }
+            if(oldVersion < 6)
             {
-                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_TERM_IN_MONTHS + " text not null DEFAULT '1'");
-                //onCreate(db);
+                // the typed table is created with every later column too
+                convertToTypedColumns(db);
             }
-            else
+            else if(oldVersion < 7)
             {
+                for(String column : ADJUSTABLE_RATE_COLUMN_DEFINITIONS)
+                {
+                    db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + column);
+                }
+            }
 
-                Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
-                db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
-                onCreate(db);
+            if(oldVersion < 8)
+            {
+                db.execSQL(PREPAYMENTS_CREATE);
+                db.execSQL(PREPAYMENTS_INDEX_CREATE);
+            }
+            if(oldVersion >= 6 && oldVersion < 9)
+            {
+                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + PAYMENT_FREQUENCY_COLUMN_DEFINITION);
             }
 
+            // no loan has lump sums before version 8, and from then on the
+            // stored summaries already count them; every loan is monthly
+            // until version 9, so later steps leave the summaries as they are
+            if(oldVersion < 8)
+            {
+                fillSummaries(db);
+            }
         }
+
+        // copy the text columns into a typed table and swap it in; values that
+        // do not parse become 0
+        private void convertToTypedColumns(SQLiteDatabase db)
+        {
+            String table = DATABASE_TABLE + "_typed";
+            db.execSQL(createTableSql(table));
+            db.execSQL("INSERT INTO " + table + " (" + KEY_ROWID + ", " + KEY_TITLE + ", " + KEY_PRINCIPAL + ", " + KEY_RATE + ", " + KEY_TERM
+                    + ", " + KEY_EXTRA_MONTHLY_PAYMENT + ", " + KEY_TERM_IN_MONTHS + ") SELECT " + KEY_ROWID + ", " + KEY_TITLE
+                    + ", CAST(ROUND(CAST(" + KEY_PRINCIPAL + " AS REAL) * 100) AS INTEGER), CAST(" + KEY_RATE + " AS REAL), CAST("
+                    + KEY_TERM + " AS REAL), CAST(ROUND(CAST(" + KEY_EXTRA_MONTHLY_PAYMENT + " AS REAL) * 100) AS INTEGER), "
+                    + KEY_TERM_IN_MONTHS + " FROM " + DATABASE_TABLE);
+            db.execSQL("DROP TABLE " + DATABASE_TABLE);
+            db.execSQL("ALTER TABLE " + table + " RENAME TO " + DATABASE_TABLE);
+        }
+
+        // compute the derived columns for every existing row
+        private void fillSummaries(SQLiteDatabase db)
+        {
+            Cursor cursor = db.query(DATABASE_TABLE, new String[] { KEY_ROWID, KEY_PRINCIPAL, KEY_RATE, KEY_TERM, KEY_EXTRA_MONTHLY_PAYMENT,
+                    KEY_ARM_FIXED_PAYMENTS, KEY_ARM_ADJUSTMENT_INTERVAL, KEY_ARM_INDEXED_RATE, KEY_ARM_PERIODIC_CAP, KEY_ARM_LIFETIME_CAP }, null, null,
+                    null, null, null);
+            SQLiteStatement update = db.compileStatement(UPDATE_SUMMARY_SQL);
+            try
+            {
+                while(cursor.moveToNext())
+                {
+                    update.clearBindings();
+                    bindSummary(update, 1, cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3), cursor.getLong(4),
+                            Loan.FREQUENCY_MONTHLY, getAdjustableRate(cursor), null, false);
+                    update.bindLong(5, cursor.getLong(0));
+                    update.execute();
+                }
+            }
+            finally
+            {
+                update.close();
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Bind the derived summary columns for the given loan values to four
+     * consecutive parameters. A loan without a term, e.g. a row whose text
+     * did not convert during an upgrade, binds the summary columns to null.
+     * The lump sums may be null when there are none.
+     * Bulk writes pass {@code cached} false so they do not push the loans the
+     * screens are using out of {@link ScheduleCache}.
+     */
+    private static void bindSummary(SQLiteStatement statement, int firstIndex, long principalCents, double rate, double term,
+            long extraMonthlyPaymentCents, int paymentFrequency, AdjustableRate adjustableRate, PrepaymentEvent[] prepayments, boolean cached)
+    {
+        if(term <= 0)
+        {
+            statement.bindNull(firstIndex);
+            statement.bindNull(firstIndex + 1);
+            statement.bindNull(firstIndex + 2);
+            statement.bindNull(firstIndex + 3);
+            return;
+        }
+
+        double principal = fromCents(principalCents);
+        double extra = fromCents(extraMonthlyPaymentCents);
+        LoanSummary summary;
+        if(cached)
+        {
+            summary = ScheduleCache.getSummary(principal, rate / 100, term, extra, paymentFrequency, adjustableRate, prepayments);
+        }
+        else
+        {
+            Loan loan = new Loan(principal, rate / 100, term, extra);
+            loan.setPaymentFrequency(paymentFrequency);
+            loan.setAdjustableRate(adjustableRate);
+            loan.setPrepayments(prepayments);
+            summary = new LoanSummary(loan);
+        }
+
+        statement.bindDouble(firstIndex, summary.getMonthlyPayment());
+        statement.bindDouble(firstIndex + 1, summary.getTotalPaid());
+        statement.bindDouble(firstIndex + 2, summary.getTotalInterestPaid());
+        statement.bindLong(firstIndex + 3, summary.getPaymentCount());
+    }
+
+    /**
+     * Read the payment frequency, one of the Loan.FREQUENCY_ constants, from
+     * a cursor over the loan columns.
+     */
+    public static int getPaymentFrequency(Cursor cursor)
+    {
+        return cursor.getInt(cursor.getColumnIndexOrThrow(KEY_PAYMENT_FREQUENCY));
+    }
+
+    /**
+     * Read the rate-change terms from a cursor over the loan columns.
+     * 
+     * @return the terms, or null for a fixed-rate loan
+     */
+    public static AdjustableRate getAdjustableRate(Cursor cursor)
+    {
+        int fixedPayments = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ARM_FIXED_PAYMENTS));
+        int adjustmentInterval = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ARM_ADJUSTMENT_INTERVAL));
+        if(fixedPayments < 1 || adjustmentInterval < 1)
+        {
+            return null;
+        }
+        return new AdjustableRate(fixedPayments, adjustmentInterval, cursor.getDouble(cursor.getColumnIndexOrThrow(KEY_ARM_INDEXED_RATE)) / 100,
+                cursor.getDouble(cursor.getColumnIndexOrThrow(KEY_ARM_PERIODIC_CAP)) / 100, cursor.getDouble(cursor
+                        .getColumnIndexOrThrow(KEY_ARM_LIFETIME_CAP)) / 100);
+    }
+
+    // bind the rate-change terms to five consecutive parameters, all 0 for a
+    // fixed-rate loan
+    private static void bindAdjustableRate(SQLiteStatement statement, int firstIndex, AdjustableRate adjustableRate)
+    {
+        if(adjustableRate == null)
+        {
+            statement.bindLong(firstIndex, 0);
+            statement.bindLong(firstIndex + 1, 0);
+            statement.bindDouble(firstIndex + 2, 0);
+            statement.bindDouble(firstIndex + 3, 0);
+            statement.bindDouble(firstIndex + 4, 0);
+            return;
+        }
+
+        statement.bindLong(firstIndex, adjustableRate.getFixedPayments());
+        statement.bindLong(firstIndex + 1, adjustableRate.getAdjustmentInterval());
+        statement.bindDouble(firstIndex + 2, toPercent(adjustableRate.getIndexedRate()));
+        statement.bindDouble(firstIndex + 3, toPercent(adjustableRate.getPeriodicCap()));
+        statement.bindDouble(firstIndex + 4, toPercent(adjustableRate.getLifetimeCap()));
+    }
+
+    // an annual fraction as a stored percentage, without the noise of the
+    // multiplication (0.07 * 100 is 7.000000000000001)
+    private static double toPercent(double rate)
+    {
+        return Math.round(rate * 1e11) / 1e9;
+    }
+
+    /**
+     * Convert an amount in dollars to the whole cents stored in the money
+     * columns.
+     */
+    public static long toCents(double dollars)
+    {
+        return Math.round(dollars * 100);
+    }
+
+    /**
+     * Convert whole cents read from a money column back to dollars.
+     */
+    public static double fromCents(long cents)
+    {
+        return cents / 100.0;
     }
 
     /**
@@ -108,14 +443,85 @@ public class LoansDbAdapter
     {
         mDbHelper = new DatabaseHelper(mCtx);
         mDb = mDbHelper.getWritableDatabase();
+        enableWriteAheadLogging(mDb);
+
+        mInsertStatement = mDb.compileStatement(INSERT_LOAN_SQL);
+        mUpdateStatement = mDb.compileStatement(UPDATE_LOAN_SQL);
+        mRenameStatement = mDb.compileStatement(RENAME_LOAN_SQL);
+        mDeleteStatement = mDb.compileStatement(DELETE_LOAN_SQL);
+        mSummaryStatement = mDb.compileStatement(UPDATE_SUMMARY_SQL);
+        mInsertPrepaymentStatement = mDb.compileStatement(INSERT_PREPAYMENT_SQL);
+        mDeletePrepaymentsStatement = mDb.compileStatement(DELETE_PREPAYMENTS_SQL);
+        mChangesStatement = mDb.compileStatement(CHANGES_SQL);
         return this;
     }
 
-    public void close()
+    // lets readers run alongside a writer instead of waiting for it; the
+    // call only exists from API 11, so it is looked up at run time
+    private static void enableWriteAheadLogging(SQLiteDatabase db)
+    {
+        if(Build.VERSION.SDK_INT < 11)
+        {
+            return;
+        }
+
+        try
+        {
+            SQLiteDatabase.class.getMethod("enableWriteAheadLogging").invoke(db);
+        }
+        catch(Exception e)
+        {
+            Log.w(TAG, "Write-ahead logging not available", e);
+        }
+    }
+
+    public synchronized void close()
     {
+        mInsertStatement.close();
+        mUpdateStatement.close();
+        mRenameStatement.close();
+        mDeleteStatement.close();
+        mSummaryStatement.close();
+        mInsertPrepaymentStatement.close();
+        mDeletePrepaymentsStatement.close();
+        mChangesStatement.close();
         mDbHelper.close();
     }
 
+    private static String joinColumns(String[] columns)
+    {
+        StringBuilder sql = new StringBuilder();
+        for(int i = 0; i < columns.length; i++)
+        {
+            if(i > 0)
+            {
+                sql.append(", ");
+            }
+            sql.append(columns[i]);
+        }
+        return sql.toString();
+    }
+
+    // run a compiled UPDATE or DELETE and report whether it touched a row.
+    // changes() counts per connection, and with write-ahead logging a
+    // read-only statement outside a transaction may get a pooled reader
+    // instead of the writer, so both run in one transaction
+    private boolean executeChange(SQLiteStatement statement)
+    {
+        mDb.beginTransaction();
+        try
+        {
+            statement.execute();
+            boolean changed = mChangesStatement.simpleQueryForLong() > 0;
+            mDb.setTransactionSuccessful();
+            return changed;
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+    }
+
     /**
      * Create a new note using the title and body provided. If the note is
      * successfully created return the new rowId for that note, otherwise return
@@ -123,33 +529,243 @@ public class LoansDbAdapter
      * 
      * @param Title
      *            the title of the note
-     * @param Principal
-     *            the body of the note
+     * @param principalCents
+     *            the amount borrowed, in cents
+     * @param rate
+     *            the annual interest rate, in percent
+     * @param term
+     *            the length of the loan
+     * @param extraMonthlyPaymentCents
+     *            the extra amount paid with each payment, in cents
+     * @param paymentFrequency
+     *            one of the Loan.FREQUENCY_ constants
+     * @param adjustableRate
+     *            the rate-change terms, null for a fixed-rate loan
      * @return rowId or -1 if failed
      */
-    public long createLoan(String Title, String Principal, String Rate, String Term, String ExtraMonthlyPayment)
+    public synchronized long createLoan(String Title, long principalCents, double rate, double term, long extraMonthlyPaymentCents,
+            int paymentFrequency, AdjustableRate adjustableRate)
     {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_TITLE, Title);
-        initialValues.put(KEY_PRINCIPAL, Principal);
-        initialValues.put(KEY_RATE, Rate);
-        initialValues.put(KEY_TERM, Term);
-        initialValues.put(KEY_EXTRA_MONTHLY_PAYMENT, ExtraMonthlyPayment);
+        SQLiteStatement insert = mInsertStatement;
+        insert.clearBindings();
+        insert.bindString(1, Title);
+        insert.bindLong(2, principalCents);
+        insert.bindDouble(3, rate);
+        insert.bindDouble(4, term);
+        insert.bindLong(5, 1);
+        insert.bindLong(6, extraMonthlyPaymentCents);
+        insert.bindLong(7, paymentFrequency);
+        bindAdjustableRate(insert, 8, adjustableRate);
+        bindSummary(insert, 13, principalCents, rate, term, extraMonthlyPaymentCents, paymentFrequency, adjustableRate, null, true);
 
-        return mDb.insert(DATABASE_TABLE, null, initialValues);
+        try
+        {
+            return insert.executeInsert();
+        }
+        catch(SQLException e)
+        {
+            Log.e(TAG, "Error inserting loan", e);
+            return -1;
+        }
     }
 
     /**
-     * Delete the note with the given rowId
+     * Delete the note with the given rowId, along with its lump sums
      * 
      * @param rowId
      *            id of note to delete
      * @return true if deleted, false otherwise
      */
-    public boolean deleteLoan(long rowId)
+    public synchronized boolean deleteLoan(long rowId)
+    {
+        mDb.beginTransaction();
+        try
+        {
+            mDeletePrepaymentsStatement.bindLong(1, rowId);
+            mDeletePrepaymentsStatement.execute();
+            mDeleteStatement.bindLong(1, rowId);
+            boolean deleted = executeChange(mDeleteStatement);
+            mDb.setTransactionSuccessful();
+            return deleted;
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Return the lump sums of a loan in payment order, empty when it has
+     * none.
+     * 
+     * @param loanId
+     *            rowId of the loan
+     */
+    public PrepaymentEvent[] fetchPrepayments(long loanId)
     {
+        Cursor cursor = mDb.rawQuery(FETCH_PREPAYMENTS_SQL, new String[] { Long.toString(loanId) });
+        try
+        {
+            PrepaymentEvent[] prepayments = new PrepaymentEvent[cursor.getCount()];
+            for(int i = 0; cursor.moveToNext(); i++)
+            {
+                prepayments[i] = new PrepaymentEvent(cursor.getInt(0), fromCents(cursor.getLong(1)), cursor.getInt(2));
+            }
+            return prepayments;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
 
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+    /**
+     * Return a Cursor over the lump sums of every loan, grouped by
+     * {@link #KEY_LOAN_ID} and in payment order within a loan.
+     */
+    public Cursor fetchAllPrepayments()
+    {
+        return mDb.query(PREPAYMENTS_TABLE, new String[] { KEY_LOAN_ID, KEY_PREPAYMENT_FIRST_PAYMENT, KEY_PREPAYMENT_AMOUNT,
+                KEY_PREPAYMENT_INTERVAL }, null, null, null, null, KEY_LOAN_ID + ", " + KEY_PREPAYMENT_FIRST_PAYMENT);
+    }
+
+    /**
+     * Replace the lump sums of a loan and recompute its stored summary, in
+     * one transaction.
+     * 
+     * @param loanId
+     *            rowId of the loan
+     * @param prepayments
+     *            the new lump sums, empty to remove them all
+     * @return true if the loan exists and was updated, false otherwise
+     */
+    public synchronized boolean setPrepayments(long loanId, PrepaymentEvent[] prepayments)
+    {
+        mDb.beginTransaction();
+        try
+        {
+            mDeletePrepaymentsStatement.bindLong(1, loanId);
+            mDeletePrepaymentsStatement.execute();
+            insertPrepayments(loanId, prepayments);
+
+            if(!updateSummary(loanId, prepayments))
+            {
+                return false;
+            }
+            mDb.setTransactionSuccessful();
+            return true;
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+    }
+
+    // add lump sums to a loan, inside the caller's transaction
+    private void insertPrepayments(long loanId, PrepaymentEvent[] prepayments)
+    {
+        SQLiteStatement insert = mInsertPrepaymentStatement;
+        for(PrepaymentEvent prepayment : prepayments)
+        {
+            insert.clearBindings();
+            insert.bindLong(1, loanId);
+            insert.bindLong(2, prepayment.getFirstPayment());
+            insert.bindLong(3, toCents(prepayment.getAmount()));
+            insert.bindLong(4, prepayment.getInterval());
+            insert.executeInsert();
+        }
+    }
+
+    /**
+     * Read lump sums written by {@link #appendPrepayments(StringBuilder,
+     * PrepaymentEvent[])}: entries separated by semicolons, each the payment
+     * number (1 based, as in the amortization table), the amount in
+     * dollars and optionally the payments between repeats, separated by
+     * colons. For example "13:5000:12; 37:2000" pays 5000 with payment 13
+     * and every 12th payment after it, and 2000 once with payment 37.
+     * 
+     * @return the lump sums, empty for empty text
+     * @throws IllegalArgumentException
+     *             if an entry does not parse or is not a positive amount at
+     *             a payment number of 1 or more
+     */
+    public static PrepaymentEvent[] parsePrepayments(String text)
+    {
+        text = text.trim();
+        if(text.length() == 0)
+        {
+            return new PrepaymentEvent[0];
+        }
+
+        String[] entries = text.split(";");
+        PrepaymentEvent[] prepayments = new PrepaymentEvent[entries.length];
+        for(int i = 0; i < entries.length; i++)
+        {
+            String[] parts = entries[i].split(":");
+            if(parts.length < 2 || parts.length > 3)
+            {
+                throw new IllegalArgumentException("Lump sum is not payment:amount[:interval]: " + entries[i]);
+            }
+            int payment = Integer.parseInt(parts[0].trim());
+            long amountCents = toCents(Double.parseDouble(parts[1].trim()));
+            int interval = (parts.length == 3) ? Integer.parseInt(parts[2].trim()) : 0;
+            if(payment < 1 || amountCents <= 0)
+            {
+                throw new IllegalArgumentException("Lump sum needs a payment of 1 or more and a positive amount: " + entries[i]);
+            }
+
+            // throws for a negative interval
+            prepayments[i] = new PrepaymentEvent(payment - 1, fromCents(amountCents), interval);
+        }
+        return prepayments;
+    }
+
+    /**
+     * Append lump sums in the form read by {@link #parsePrepayments(String)},
+     * nothing when there are none.
+     */
+    public static void appendPrepayments(StringBuilder text, PrepaymentEvent[] prepayments)
+    {
+        for(int i = 0; i < prepayments.length; i++)
+        {
+            appendPrepayment(text, (i == 0) ? "" : "; ", prepayments[i].getFirstPayment(), toCents(prepayments[i].getAmount()),
+                    prepayments[i].getInterval());
+        }
+    }
+
+    private static void appendPrepayment(StringBuilder text, String separator, int firstPayment, long amountCents, int interval)
+    {
+        text.append(separator).append(firstPayment + 1).append(':');
+        appendCents(text, amountCents);
+        if(interval > 0)
+        {
+            text.append(':').append(interval);
+        }
+    }
+
+    // recompute the stored summary of a loan from its row and the given lump
+    // sums
+    private boolean updateSummary(long loanId, PrepaymentEvent[] prepayments)
+    {
+        SQLiteStatement update = mSummaryStatement;
+        Cursor loan = fetchLoan(loanId);
+        try
+        {
+            if(loan.getCount() == 0)
+            {
+                return false;
+            }
+            update.clearBindings();
+            bindSummary(update, 1, loan.getLong(loan.getColumnIndexOrThrow(KEY_PRINCIPAL)), loan.getDouble(loan.getColumnIndexOrThrow(KEY_RATE)),
+                    loan.getDouble(loan.getColumnIndexOrThrow(KEY_TERM)), loan.getLong(loan.getColumnIndexOrThrow(KEY_EXTRA_MONTHLY_PAYMENT)),
+                    getPaymentFrequency(loan), getAdjustableRate(loan), prepayments, true);
+            update.bindLong(5, loanId);
+        }
+        finally
+        {
+            loan.close();
+        }
+        return executeChange(update);
     }
 
     /**
@@ -160,8 +776,7 @@ public class LoansDbAdapter
     public Cursor fetchAllLoans()
     {
 
-        return mDb.query(DATABASE_TABLE, new String[] { KEY_ROWID, KEY_TITLE, KEY_PRINCIPAL, KEY_RATE, KEY_TERM, KEY_TERM_IN_MONTHS,
-                KEY_EXTRA_MONTHLY_PAYMENT }, null, null, null, null, null);
+        return mDb.query(DATABASE_TABLE, LOAN_COLUMNS, null, null, null, null, null);
     }
 
     /**
@@ -176,8 +791,7 @@ public class LoansDbAdapter
     public Cursor fetchLoan(long rowId) throws SQLException
     {
 
-        Cursor mCursor = mDb.query(true, DATABASE_TABLE, new String[] { KEY_ROWID, KEY_TITLE, KEY_PRINCIPAL, KEY_RATE, KEY_TERM, KEY_TERM_IN_MONTHS,
-                KEY_EXTRA_MONTHLY_PAYMENT }, KEY_ROWID + "=" + rowId, null, null, null, null, null);
+        Cursor mCursor = mDb.rawQuery(FETCH_LOAN_SQL, new String[] { Long.toString(rowId) });
 
         if(mCursor != null)
         {
@@ -196,20 +810,39 @@ public class LoansDbAdapter
      *            id of note to update
      * @param title
      *            value to set note title to
-     * @param principal
-     *            value to set note body to
+     * @param principalCents
+     *            the amount borrowed, in cents
+     * @param rate
+     *            the annual interest rate, in percent
+     * @param term
+     *            the length of the loan
+     * @param termInMonths
+     *            whether term counts months rather than years
+     * @param extraMonthlyPaymentCents
+     *            the extra amount paid with each payment, in cents
+     * @param paymentFrequency
+     *            one of the Loan.FREQUENCY_ constants
+     * @param adjustableRate
+     *            the rate-change terms, null for a fixed-rate loan
      * @return true if the note was successfully updated, false otherwise
      */
-    public boolean updateLoan(long rowId, String principal, String rate, String term, Boolean termInMonths, String ExtraMonthlyPayment)
+    public synchronized boolean updateLoan(long rowId, long principalCents, double rate, double term, boolean termInMonths,
+            long extraMonthlyPaymentCents, int paymentFrequency, AdjustableRate adjustableRate)
     {
-        ContentValues args = new ContentValues();
-        args.put(KEY_PRINCIPAL, principal);
-        args.put(KEY_RATE, rate);
-        args.put(KEY_TERM, term);
-        args.put(KEY_TERM_IN_MONTHS, (termInMonths ? 1 : 0));
-        args.put(KEY_EXTRA_MONTHLY_PAYMENT, ExtraMonthlyPayment);
+        SQLiteStatement update = mUpdateStatement;
+        update.clearBindings();
+        update.bindLong(1, principalCents);
+        update.bindDouble(2, rate);
+        update.bindDouble(3, term);
+        update.bindLong(4, termInMonths ? 1 : 0);
+        update.bindLong(5, extraMonthlyPaymentCents);
+        update.bindLong(6, paymentFrequency);
+        bindAdjustableRate(update, 7, adjustableRate);
+        bindSummary(update, 12, principalCents, rate, term, extraMonthlyPaymentCents, paymentFrequency, adjustableRate,
+                fetchPrepayments(rowId), true);
+        update.bindLong(16, rowId);
 
-        return mDb.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+        return executeChange(update);
     }
 
     /**
@@ -225,11 +858,375 @@ public class LoansDbAdapter
      *            value to set note body to
      * @return true if the note was successfully updated, false otherwise
      */
-    public boolean renameLoan(long rowId, String title)
+    public synchronized boolean renameLoan(long rowId, String title)
+    {
+        mRenameStatement.bindString(1, title);
+        mRenameStatement.bindLong(2, rowId);
+        return executeChange(mRenameStatement);
+    }
+
+    /**
+     * Callback for {@link LoansDbAdapter#importLoans(Reader, ImportListener)}.
+     */
+    public interface ImportListener
+    {
+        /**
+         * Called after each batch of loans is committed, and once more at the
+         * end, on the importing thread.
+         */
+        void onImportProgress(int imported, int skipped);
+    }
+
+    /**
+     * Read loans from CSV and insert them. Each line holds the columns of
+     * {@link #CSV_COLUMNS} in order: title, principal and extra monthly
+     * payment in dollars, rate in percent, term, 1 or 0 for a term in months,
+     * then for an adjustable-rate loan the fixed payments, adjustment
+     * interval, indexed rate and caps in percent, then the payment frequency
+     * as one of the Loan.FREQUENCY_ constants, then the lump sums in the form
+     * read by {@link #parsePrepayments(String)}. The adjustable-rate and
+     * lump-sum columns may be left empty. The lump sums may be left out, as
+     * may the adjustable-rate columns and the frequency for a monthly
+     * fixed-rate loan. A first line naming the columns is
+     * skipped, as are rows that do not parse. Titles may be quoted but cannot
+     * span lines.
+     * 
+     * Rows are committed in batches, so a failure part way through keeps the
+     * batches committed before it. Only one batch of lines is held at a
+     * time, and the adapter is only locked while a batch is inserted, so
+     * other writes are not held up for the whole import.
+     * 
+     * @return the number of loans inserted
+     * @throws IOException
+     *             if the source cannot be read
+     */
+    public int importLoans(Reader source, ImportListener listener) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(source, CSV_BUFFER_SIZE);
+        String[] fields = new String[CSV_COLUMNS.length];
+        StringBuilder field = new StringBuilder();
+
+        // a batch of lines is read without the lock, so other writes only
+        // wait for the batch being inserted
+        String[] lines = new String[IMPORT_BATCH_SIZE];
+        int[] lineNumbers = new int[IMPORT_BATCH_SIZE];
+
+        int imported = 0;
+        int skipped = 0;
+        int batch = 0;
+        int lineNumber = 0;
+
+        String line;
+        while((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+            if(line.length() == 0)
+            {
+                continue;
+            }
+            if(lineNumber == 1)
+            {
+                splitCsvLine(line, fields, field);
+                if(KEY_TITLE.equals(fields[0]))
+                {
+                    continue;
+                }
+            }
+
+            lines[batch] = line;
+            lineNumbers[batch] = lineNumber;
+            if(++batch == IMPORT_BATCH_SIZE)
+            {
+                int inserted = insertImportedLoans(lines, lineNumbers, batch, fields, field);
+                imported += inserted;
+                skipped += batch - inserted;
+                batch = 0;
+                if(listener != null)
+                {
+                    listener.onImportProgress(imported, skipped);
+                }
+            }
+        }
+
+        if(batch > 0)
+        {
+            int inserted = insertImportedLoans(lines, lineNumbers, batch, fields, field);
+            imported += inserted;
+            skipped += batch - inserted;
+        }
+
+        if(listener != null)
+        {
+            listener.onImportProgress(imported, skipped);
+        }
+        return imported;
+    }
+
+    // insert one batch of CSV lines in a single transaction, returning how
+    // many parsed
+    private synchronized int insertImportedLoans(String[] lines, int[] lineNumbers, int count, String[] fields, StringBuilder field)
+    {
+        SQLiteStatement insert = mInsertStatement;
+        int inserted = 0;
+
+        mDb.beginTransaction();
+        try
+        {
+            for(int i = 0; i < count; i++)
+            {
+                int columns = splitCsvLine(lines[i], fields, field);
+                lines[i] = null;
+                PrepaymentEvent[] prepayments = null;
+                if(columns == fields.length || columns == CSV_FIXED_RATE_COLUMN_COUNT || columns == CSV_MONTHLY_COLUMN_COUNT
+                        || columns == CSV_NO_PREPAYMENTS_COLUMN_COUNT)
+                {
+                    prepayments = bindImportedLoan(insert, fields, columns);
+                }
+                if(prepayments == null)
+                {
+                    Log.w(TAG, "Skipping loan on line " + lineNumbers[i]);
+                    continue;
+                }
+
+                insertPrepayments(insert.executeInsert(), prepayments);
+                inserted++;
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+        return inserted;
+    }
+
+    // bind one parsed CSV row to the insert statement, returning its lump
+    // sums, or null if it does not parse
+    private static PrepaymentEvent[] bindImportedLoan(SQLiteStatement insert, String[] fields, int count)
+    {
+        try
+        {
+            String title = fields[0];
+            long principalCents = toCents(Double.parseDouble(fields[1]));
+            double rate = Double.parseDouble(fields[2]);
+            double term = Double.parseDouble(fields[3]);
+            boolean termInMonths = Integer.parseInt(fields[4]) != 0;
+            long extraCents = (fields[5].length() == 0) ? 0 : toCents(Double.parseDouble(fields[5]));
+
+            AdjustableRate adjustableRate = null;
+            if(count > CSV_FIXED_RATE_COLUMN_COUNT && fields[6].length() > 0 && Integer.parseInt(fields[6]) > 0)
+            {
+                adjustableRate = new AdjustableRate(Integer.parseInt(fields[6]), Integer.parseInt(fields[7]), Double.parseDouble(fields[8]) / 100,
+                        Double.parseDouble(fields[9]) / 100, Double.parseDouble(fields[10]) / 100);
+            }
+
+            int paymentFrequency = Loan.FREQUENCY_MONTHLY;
+            if(count > CSV_MONTHLY_COLUMN_COUNT && fields[11].length() > 0)
+            {
+                paymentFrequency = Integer.parseInt(fields[11]);
+
+                // throws for a value that is not a frequency
+                Loan.getPaymentsPerYear(paymentFrequency);
+            }
+
+            PrepaymentEvent[] prepayments = (count > CSV_NO_PREPAYMENTS_COLUMN_COUNT) ? parsePrepayments(fields[12])
+                    : new PrepaymentEvent[0];
+
+            if(title.length() == 0 || term <= 0)
+            {
+                return null;
+            }
+
+            insert.clearBindings();
+            insert.bindString(1, title);
+            insert.bindLong(2, principalCents);
+            insert.bindDouble(3, rate);
+            insert.bindDouble(4, term);
+            insert.bindLong(5, termInMonths ? 1 : 0);
+            insert.bindLong(6, extraCents);
+            insert.bindLong(7, paymentFrequency);
+            bindAdjustableRate(insert, 8, adjustableRate);
+            bindSummary(insert, 13, principalCents, rate, term, extraCents, paymentFrequency, adjustableRate, prepayments, false);
+            return prepayments;
+        }
+        catch(IllegalArgumentException e)
+        {
+            // also covers NumberFormatException
+            return null;
+        }
+    }
+
+    /**
+     * Write every loan as CSV in the format read by
+     * {@link #importLoans(Reader, ImportListener)}, starting with a line
+     * naming the columns. Rows are streamed from a cursor, one at a time,
+     * alongside a cursor over the lump sums in the same loan order. The
+     * destination is flushed but not closed.
+     * 
+     * @return the number of loans written
+     * @throws IOException
+     *             if the destination cannot be written
+     */
+    public int exportLoans(Writer destination) throws IOException
     {
-        ContentValues args = new ContentValues();
-        args.put(KEY_TITLE, title);
+        BufferedWriter writer = new BufferedWriter(destination, CSV_BUFFER_SIZE);
+        StringBuilder row = new StringBuilder(128);
 
-        return mDb.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+        for(int i = 0; i < CSV_COLUMNS.length; i++)
+        {
+            row.append((i == 0) ? "" : ",").append(CSV_COLUMNS[i]);
+        }
+        row.append('\n');
+        writer.append(row);
+
+        int exported = 0;
+        Cursor cursor = mDb.query(DATABASE_TABLE, CSV_EXPORT_COLUMNS, null, null, null, null, KEY_ROWID);
+        Cursor prepayments = fetchAllPrepayments();
+        try
+        {
+            boolean morePrepayments = prepayments.moveToNext();
+            while(cursor.moveToNext())
+            {
+                row.setLength(0);
+                appendCsvField(row, cursor.getString(0));
+                row.append(',');
+                appendCents(row, cursor.getLong(1));
+                row.append(',').append(cursor.getDouble(2));
+                row.append(',').append(cursor.getDouble(3));
+                row.append(',').append(cursor.getInt(4));
+                row.append(',');
+                appendCents(row, cursor.getLong(5));
+
+                // fixed-rate loans leave the adjustable-rate columns empty
+                if(cursor.getInt(6) > 0)
+                {
+                    row.append(',').append(cursor.getInt(6));
+                    row.append(',').append(cursor.getInt(7));
+                    row.append(',').append(cursor.getDouble(8));
+                    row.append(',').append(cursor.getDouble(9));
+                    row.append(',').append(cursor.getDouble(10));
+                }
+                else
+                {
+                    row.append(",,,,,");
+                }
+                row.append(',').append(cursor.getInt(11));
+
+                // lump sums of loans no longer in the table are skipped
+                long loanId = cursor.getLong(12);
+                while(morePrepayments && prepayments.getLong(0) < loanId)
+                {
+                    morePrepayments = prepayments.moveToNext();
+                }
+                row.append(',');
+                String separator = "";
+                while(morePrepayments && prepayments.getLong(0) == loanId)
+                {
+                    appendPrepayment(row, separator, prepayments.getInt(1), prepayments.getLong(2), prepayments.getInt(3));
+                    separator = "; ";
+                    morePrepayments = prepayments.moveToNext();
+                }
+                row.append('\n');
+
+                writer.append(row);
+                exported++;
+            }
+            writer.flush();
+        }
+        finally
+        {
+            prepayments.close();
+            cursor.close();
+        }
+        return exported;
+    }
+
+    // split a CSV line into fields, returning how many it holds; quoted
+    // fields may contain commas and doubled quotes
+    private static int splitCsvLine(String line, String[] fields, StringBuilder field)
+    {
+        int count = 0;
+        int length = line.length();
+        int i = 0;
+
+        while(true)
+        {
+            field.setLength(0);
+            if(i < length && line.charAt(i) == '"')
+            {
+                i++;
+                while(i < length)
+                {
+                    char c = line.charAt(i++);
+                    if(c != '"')
+                    {
+                        field.append(c);
+                    }
+                    else if(i < length && line.charAt(i) == '"')
+                    {
+                        field.append('"');
+                        i++;
+                    }
+                    else
+                    {
+                        break;
+                    }
+                }
+            }
+            while(i < length && line.charAt(i) != ',')
+            {
+                field.append(line.charAt(i++));
+            }
+
+            if(count < fields.length)
+            {
+                fields[count] = field.toString().trim();
+            }
+            count++;
+
+            if(i >= length)
+            {
+                return count;
+            }
+            i++;
+        }
+    }
+
+    private static void appendCsvField(StringBuilder row, String value)
+    {
+        if(value.indexOf(',') < 0 && value.indexOf('"') < 0)
+        {
+            row.append(value);
+            return;
+        }
+
+        row.append('"');
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if(c == '"')
+            {
+                row.append('"');
+            }
+            row.append(c);
+        }
+        row.append('"');
+    }
+
+    // whole cents as plain dollars, e.g. 123456 -> 1234.56
+    private static void appendCents(StringBuilder row, long cents)
+    {
+        if(cents < 0)
+        {
+            row.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        row.append(cents / 100).append('.');
+        if(fraction < 10)
+        {
+            row.append('0');
+        }
+        row.append(fraction);
     }
 }
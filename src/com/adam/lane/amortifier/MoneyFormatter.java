@@ -0,0 +1,282 @@
+package com.adam.lane.amortifier;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Currency formatting for the default locale that writes into a caller's
+ * char buffer, for labels that are rebound often such as table rows. The
+ * locale's currency pattern is read once; formatting an amount then only
+ * does integer arithmetic and allocates nothing. Use from the main thread.
+ *
+ * The output is the same as the locale's currency NumberFormat: amounts are
+ * rounded half-even and printed with the monetary separators and the
+ * pattern's fraction digits. Locales whose pattern this cannot reproduce,
+ * and amounts too close to a rounding tie to settle from a double, go
+ * through the NumberFormat instead.
+ *
+ * A TextView keeps the array given to setText(char[], int, int) rather than
+ * copying it, so each label needs a buffer of its own.
+ */
+public class MoneyFormatter
+{
+    /**
+     * Size of a buffer that holds any formatted amount
+     */
+    public static final int BUFFER_LENGTH = 64;
+
+    // longest prefix plus suffix the buffer leaves room for
+    private static final int MAX_AFFIX_LENGTH = 12;
+
+    // beyond this many units a double no longer holds every cent exactly
+    private static final double MAX_EXACT_UNITS = 1e15;
+
+    // amounts checked against the NumberFormat before the fast path is
+    // trusted: grouping, both signs, a sign kept on zero, rounding both ways
+    // and trailing zeros
+    private static final double[] PROBE_AMOUNTS = new double[] { 1234567.891, -1234567.891, 0, -0.004, 0.124, 0.126, 12.3, 1000, 0.5 };
+
+    private static MoneyFormatter sInstance;
+
+    private final Locale mLocale;
+    private final NumberFormat mNumberFormat;
+
+    // false when the locale's pattern could not be read, in which case every
+    // amount goes through mNumberFormat
+    private final boolean mFast;
+
+    private String mPositivePrefix;
+    private String mPositiveSuffix;
+    private String mNegativePrefix;
+    private String mNegativeSuffix;
+    private char mGroupingSeparator;
+    private char mDecimalSeparator;
+    private char mZeroDigit;
+    private int mGroupingSize;
+    private int mFractionDigits;
+    private int mMinimumFractionDigits;
+    private long mScale = 1;
+
+    // digits are produced least significant first, then copied in order
+    private final char[] mDigits = new char[BUFFER_LENGTH];
+    private final char[] mOutput = new char[BUFFER_LENGTH];
+
+    /**
+     * Return the formatter for the current default locale. It is rebuilt
+     * only when the locale changes.
+     */
+    public static synchronized MoneyFormatter getInstance()
+    {
+        Locale locale = Locale.getDefault();
+        if(sInstance == null || !sInstance.mLocale.equals(locale))
+        {
+            sInstance = new MoneyFormatter(locale);
+        }
+        return sInstance;
+    }
+
+    private MoneyFormatter(Locale locale)
+    {
+        mLocale = locale;
+        mNumberFormat = NumberFormat.getCurrencyInstance(locale);
+
+        boolean fast = false;
+        if(mNumberFormat instanceof DecimalFormat)
+        {
+            DecimalFormat format = (DecimalFormat) mNumberFormat;
+            DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+
+            mPositivePrefix = format.getPositivePrefix();
+            mPositiveSuffix = format.getPositiveSuffix();
+            mNegativePrefix = format.getNegativePrefix();
+            mNegativeSuffix = format.getNegativeSuffix();
+            mGroupingSeparator = getMonetaryGroupingSeparator(symbols);
+            mDecimalSeparator = symbols.getMonetaryDecimalSeparator();
+            mZeroDigit = symbols.getZeroDigit();
+            mGroupingSize = format.isGroupingUsed() ? format.getGroupingSize() : 0;
+            mFractionDigits = format.getMaximumFractionDigits();
+            mMinimumFractionDigits = format.getMinimumFractionDigits();
+            for(int i = 0; i < mFractionDigits; i++)
+            {
+                mScale *= 10;
+            }
+
+            fast = mFractionDigits <= 4 && format.getMinimumIntegerDigits() == 1 && format.getMultiplier() == 1
+                    && !format.isDecimalSeparatorAlwaysShown() && hasUniformGrouping(format.toPattern(), mGroupingSize)
+                    && mPositivePrefix.length() + mPositiveSuffix.length() <= MAX_AFFIX_LENGTH
+                    && mNegativePrefix.length() + mNegativeSuffix.length() <= MAX_AFFIX_LENGTH;
+
+            // anything the settings above miss shows up as a difference
+            for(int i = 0; fast && i < PROBE_AMOUNTS.length; i++)
+            {
+                int length = formatFast(PROBE_AMOUNTS[i], mOutput);
+                fast = length < 0 || new String(mOutput, 0, length).equals(mNumberFormat.format(PROBE_AMOUNTS[i]));
+            }
+        }
+        mFast = fast;
+    }
+
+    // the grouping separator for amounts of money, which differs from the
+    // plain one in some locales (e.g. de_AT); the accessor only exists on
+    // newer platforms
+    private static char getMonetaryGroupingSeparator(DecimalFormatSymbols symbols)
+    {
+        try
+        {
+            return (Character) DecimalFormatSymbols.class.getMethod("getMonetaryGroupingSeparator").invoke(symbols);
+        }
+        catch(Exception e)
+        {
+            return symbols.getGroupingSeparator();
+        }
+    }
+
+    // false for patterns such as #,##,##0.00 whose groups are not all the
+    // same size
+    private static boolean hasUniformGrouping(String pattern, int groupingSize)
+    {
+        int end = pattern.indexOf(';');
+        String positive = (end < 0) ? pattern : pattern.substring(0, end);
+        int point = positive.indexOf('.');
+        int last = (point < 0) ? positive.lastIndexOf(',') : positive.lastIndexOf(',', point);
+        if(last < 0)
+        {
+            return true;
+        }
+
+        int previous = positive.lastIndexOf(',', last - 1);
+        return previous < 0 || last - previous - 1 == groupingSize;
+    }
+
+    /**
+     * Format an amount into the start of the buffer, which must hold at
+     * least {@link #BUFFER_LENGTH} chars.
+     *
+     * @return the number of chars written
+     */
+    public int format(double amount, char[] buffer)
+    {
+        int length = mFast ? formatFast(amount, buffer) : -1;
+        if(length < 0)
+        {
+            // rare enough that the allocating path is fine
+            String text = mNumberFormat.format(amount);
+            length = Math.min(text.length(), buffer.length);
+            text.getChars(0, length, buffer, 0);
+        }
+        return length;
+    }
+
+    // format without allocating, or return -1 for an amount that has to go
+    // through the NumberFormat
+    private int formatFast(double amount, char[] buffer)
+    {
+        double units = Math.abs(amount * mScale);
+        if(Double.isNaN(units) || units >= MAX_EXACT_UNITS)
+        {
+            return -1;
+        }
+
+        // NumberFormat rounds the exact value half-even. Away from a half
+        // the product above rounds the same way; closer than its rounding
+        // error, only the exact value can tell which way to go
+        double floor = Math.floor(units);
+        double remainder = units - floor;
+        if(Math.abs(remainder - 0.5) <= 2 * Math.ulp(units))
+        {
+            return -1;
+        }
+        long rounded = (long) floor + ((remainder > 0.5) ? 1 : 0);
+
+        // like NumberFormat, amounts that round to zero keep their sign
+        boolean negative = amount < 0 || (amount == 0 && 1 / amount < 0);
+
+        long whole = rounded / mScale;
+        long fraction = rounded % mScale;
+
+        // trailing zeros are dropped down to the minimum fraction digits
+        int fractionDigits = mFractionDigits;
+        while(fractionDigits > mMinimumFractionDigits && fraction % 10 == 0)
+        {
+            fraction /= 10;
+            fractionDigits--;
+        }
+
+        int digitCount = 0;
+        for(int i = 0; i < fractionDigits; i++)
+        {
+            mDigits[digitCount++] = (char) (mZeroDigit + fraction % 10);
+            fraction /= 10;
+        }
+        if(fractionDigits > 0)
+        {
+            mDigits[digitCount++] = mDecimalSeparator;
+        }
+
+        int group = 0;
+        do
+        {
+            if(mGroupingSize > 0 && group == mGroupingSize)
+            {
+                mDigits[digitCount++] = mGroupingSeparator;
+                group = 0;
+            }
+            mDigits[digitCount++] = (char) (mZeroDigit + whole % 10);
+            whole /= 10;
+            group++;
+        }
+        while(whole != 0);
+
+        String prefix = negative ? mNegativePrefix : mPositivePrefix;
+        String suffix = negative ? mNegativeSuffix : mPositiveSuffix;
+
+        int length = prefix.length();
+        prefix.getChars(0, length, buffer, 0);
+        while(digitCount > 0)
+        {
+            buffer[length++] = mDigits[--digitCount];
+        }
+        suffix.getChars(0, suffix.length(), buffer, length);
+        return length + suffix.length();
+    }
+
+    /**
+     * Format a whole number in ASCII digits without grouping, e.g. a payment
+     * number, into the start of the buffer.
+     *
+     * @return the number of chars written
+     */
+    public int formatCount(int value, char[] buffer)
+    {
+        long remaining = Math.abs((long) value);
+        int digitCount = 0;
+        do
+        {
+            mDigits[digitCount++] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        while(remaining != 0);
+
+        int length = 0;
+        if(value < 0)
+        {
+            buffer[length++] = '-';
+        }
+        while(digitCount > 0)
+        {
+            buffer[length++] = mDigits[--digitCount];
+        }
+        return length;
+    }
+
+    /**
+     * Format an amount as a new String, for text that is built once such as
+     * dialog messages.
+     */
+    public String format(double amount)
+    {
+        return new String(mOutput, 0, format(amount, mOutput));
+    }
+}
@@ -0,0 +1,180 @@
+package com.adam.lane.amortifier;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Amortization table that is computed a page at a time as rows are asked
+ * for. Only the most recently used pages are kept; older ones are recycled
+ * into the next page that gets computed. The row count comes from the
+ * closed-form payoff, so nothing has to be simulated up front.
+ * 
+ * A row is one payment, or a period of several payments when the table is
+ * rolled up, e.g. by year. Either way only the pages kept are allocated, so
+ * a weekly loan with four times the rows of a monthly one costs no more
+ * memory and each row bind costs the same.
+ */
+public class PagedAmortizationSchedule
+{
+    // five years of monthly payments, or sixty rolled up periods, per page
+    static final int PAGE_SIZE = 60;
+
+    /**
+     * Periods per year meaning a row for every payment
+     */
+    static final int EVERY_PAYMENT = 0;
+
+    // enough pages to cover a screen of rows plus some fling in each direction
+    static final int MAX_PAGES = 4;
+
+    // rough heap cost with every page computed, plus the recycled page
+    static final long MAX_BYTE_SIZE = (MAX_PAGES + 1) * AmortizationSchedule.getByteSize(PAGE_SIZE) + 512;
+
+    private final Loan mLoan;
+    private final int mPeriodsPerYear;
+    private final int mCount;
+
+    private AmortizationSchedule mRecycledPage;
+
+    // page number -> computed rows, in least recently used order
+    private final LinkedHashMap<Integer, AmortizationSchedule> mPages = new LinkedHashMap<Integer, AmortizationSchedule>(MAX_PAGES + 1, 1f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, AmortizationSchedule> eldest)
+        {
+            if(size() > MAX_PAGES)
+            {
+                mRecycledPage = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // last page handed out, checked before the map to keep row binds cheap
+    private int mCurrentPageNumber = -1;
+    private AmortizationSchedule mCurrentPage;
+
+    public PagedAmortizationSchedule(Loan loan)
+    {
+        this(loan, EVERY_PAYMENT);
+    }
+
+    /**
+     * @param periodsPerYear
+     *            rows per year, e.g. 4 for quarters, or
+     *            {@link #EVERY_PAYMENT} for a row per payment
+     */
+    public PagedAmortizationSchedule(Loan loan, int periodsPerYear)
+    {
+        mLoan = loan;
+        mPeriodsPerYear = periodsPerYear;
+        mCount = (periodsPerYear == EVERY_PAYMENT) ? loan.getPaymentCount() : loan.getPeriodCount(periodsPerYear);
+    }
+
+    public Loan getLoan()
+    {
+        return mLoan;
+    }
+
+    public int getPeriodsPerYear()
+    {
+        return mPeriodsPerYear;
+    }
+
+    public int size()
+    {
+        return mCount;
+    }
+
+    // getters to access data, by row number (0 based)
+    public synchronized double getBalance(int row)
+    {
+        return getPage(row).getBalance(row % PAGE_SIZE);
+    }
+
+    public synchronized double getTotalPaid(int row)
+    {
+        return getPage(row).getTotalPaid(row % PAGE_SIZE);
+    }
+
+    public synchronized double getPrincipalPaid(int row)
+    {
+        return getPage(row).getPrincipalPaid(row % PAGE_SIZE);
+    }
+
+    public synchronized double getInterestPaid(int row)
+    {
+        return getPage(row).getInterestPaid(row % PAGE_SIZE);
+    }
+
+    public synchronized double getAdditionalPrincipalPaid(int row)
+    {
+        return getPage(row).getAdditionalPrincipalPaid(row % PAGE_SIZE);
+    }
+
+    // running totals through the given row (0 based), inclusive
+    public synchronized double getCumulativeTotalPaid(int row)
+    {
+        return getPage(row).getCumulativeTotalPaid(row % PAGE_SIZE);
+    }
+
+    public synchronized double getCumulativePrincipalPaid(int row)
+    {
+        return getPage(row).getCumulativePrincipalPaid(row % PAGE_SIZE);
+    }
+
+    public synchronized double getCumulativeInterestPaid(int row)
+    {
+        return getPage(row).getCumulativeInterestPaid(row % PAGE_SIZE);
+    }
+
+    public synchronized double getCumulativeAdditionalPrincipalPaid(int row)
+    {
+        return getPage(row).getCumulativeAdditionalPrincipalPaid(row % PAGE_SIZE);
+    }
+
+    /**
+     * Compute the page holding the given row ahead of time, e.g. from a
+     * background thread before the table is shown.
+     */
+    public synchronized void prefetch(int row)
+    {
+        if(row >= 0 && row < mCount)
+        {
+            getPage(row);
+        }
+    }
+
+    private AmortizationSchedule getPage(int row)
+    {
+        int pageNumber = row / PAGE_SIZE;
+        if(pageNumber == mCurrentPageNumber)
+        {
+            return mCurrentPage;
+        }
+
+        AmortizationSchedule page = mPages.get(pageNumber);
+        if(page == null)
+        {
+            page = (mRecycledPage != null) ? mRecycledPage : new AmortizationSchedule(PAGE_SIZE);
+            mRecycledPage = null;
+
+            if(mPeriodsPerYear == EVERY_PAYMENT)
+            {
+                mLoan.fillSchedule(page, pageNumber * PAGE_SIZE, PAGE_SIZE);
+            }
+            else
+            {
+                mLoan.fillRollup(page, pageNumber * PAGE_SIZE, PAGE_SIZE, mPeriodsPerYear);
+            }
+            mPages.put(pageNumber, page);
+        }
+
+        mCurrentPageNumber = pageNumber;
+        mCurrentPage = page;
+        return page;
+    }
+}
@@ -0,0 +1,441 @@
+package com.adam.lane.amortifier;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import android.database.Cursor;
+
+/**
+ * Pays off a set of loans with a fixed monthly budget. Every loan gets its
+ * minimum payment and whatever is left goes to one target loan; when a loan
+ * is paid off its payment rolls into the next target. The order of the
+ * targets is the strategy: smallest balance first (snowball), highest rate
+ * first (avalanche) or an order chosen by the caller.
+ *
+ * All loans are simulated at once over primitive arrays. Between payoffs
+ * each loan follows the closed form for its current payment, so only the
+ * payoffs are visited, in month order from a priority queue, rather than
+ * every month of every loan.
+ *
+ * Loans are planned monthly at their current rate: a loan paid at another
+ * frequency counts what its payments add up to per month, adjustable-rate
+ * resets and lump sums are left out.
+ */
+public class PayoffPlanner
+{
+    public static final int STRATEGY_SNOWBALL = 0;
+    public static final int STRATEGY_AVALANCHE = 1;
+    public static final int STRATEGY_CUSTOM = 2;
+
+    /**
+     * Payoff month of a loan that is not paid off within
+     * {@link #MAX_MONTHS}
+     */
+    public static final int NEVER = -1;
+
+    // a hundred years, the same cap as a single loan
+    public static final int MAX_MONTHS = 1200;
+
+    private static final int MONTHS_PER_YEAR = 12;
+
+    // event keys are the month in the high bits and the loan in the low ones
+    private static final int LOAN_BITS = 32;
+    private static final long LOAN_MASK = (1L << LOAN_BITS) - 1;
+
+    private final int mCount;
+    private final double[] mPrincipal;
+    private final double[] mRate;
+    private final double[] mMinimumPayment;
+    private final double mMinimumBudget;
+
+    // per-loan state of the plan being computed: balance and payment as of
+    // the start month, and everything paid before it
+    private final double[] mBalance;
+    private final double[] mPayment;
+    private final double[] mPaid;
+    private final int[] mSince;
+    private final int[] mPayoffMonth;
+    private final boolean[] mPaidOff;
+
+    /**
+     * The outcome of one strategy.
+     */
+    public static class Plan
+    {
+        private final int mStrategy;
+        private final int mMonths;
+        private final double mTotalPaid;
+        private final double mTotalInterestPaid;
+        private final int[] mOrder;
+        private final int[] mPayoffMonths;
+
+        private Plan(int strategy, int months, double totalPaid, double totalInterestPaid, int[] order, int[] payoffMonths)
+        {
+            mStrategy = strategy;
+            mMonths = months;
+            mTotalPaid = totalPaid;
+            mTotalInterestPaid = totalInterestPaid;
+            mOrder = order;
+            mPayoffMonths = payoffMonths;
+        }
+
+        // getters to access data
+        public int getStrategy()
+        {
+            return mStrategy;
+        }
+
+        /**
+         * Months until every loan is paid off, or {@link #NEVER}.
+         */
+        public int getMonths()
+        {
+            return mMonths;
+        }
+
+        public double getTotalPaid()
+        {
+            return mTotalPaid;
+        }
+
+        public double getTotalInterestPaid()
+        {
+            return mTotalInterestPaid;
+        }
+
+        /**
+         * The loan targeted in the given position (0 based).
+         */
+        public int getTarget(int position)
+        {
+            return mOrder[position];
+        }
+
+        /**
+         * Month (1 based) of the loan's last payment, or {@link #NEVER}.
+         */
+        public int getPayoffMonth(int loan)
+        {
+            return mPayoffMonths[loan];
+        }
+    }
+
+    /**
+     * @param principal
+     *            balance owed on each loan
+     * @param rate
+     *            annual rate of each loan, as for {@link Loan#getRate()}
+     * @param minimumPayment
+     *            minimum monthly payment of each loan
+     * @param count
+     *            number of loans
+     */
+    public PayoffPlanner(double[] principal, double[] rate, double[] minimumPayment, int count)
+    {
+        mCount = count;
+        mPrincipal = new double[count];
+        mRate = new double[count];
+        mMinimumPayment = new double[count];
+        System.arraycopy(principal, 0, mPrincipal, 0, count);
+        System.arraycopy(rate, 0, mRate, 0, count);
+        System.arraycopy(minimumPayment, 0, mMinimumPayment, 0, count);
+
+        double minimumBudget = 0;
+        for(int i = 0; i < count; i++)
+        {
+            minimumBudget += minimumPayment[i];
+        }
+        mMinimumBudget = minimumBudget;
+
+        mBalance = new double[count];
+        mPayment = new double[count];
+        mPaid = new double[count];
+        mSince = new int[count];
+        mPayoffMonth = new int[count];
+        mPaidOff = new boolean[count];
+    }
+
+    /**
+     * Planner for every loan in the cursor, e.g. from
+     * {@link LoansDbAdapter#fetchAllLoans()}, in cursor order. The cursor is
+     * read but not closed. Rows without a term are skipped.
+     */
+    public static PayoffPlanner read(Cursor loans)
+    {
+        int count = loans.getCount();
+        double[] principal = new double[count];
+        double[] rate = new double[count];
+        double[] minimumPayment = new double[count];
+
+        int principalColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_PRINCIPAL);
+        int rateColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_RATE);
+        int termColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_TERM);
+        int frequencyColumn = loans.getColumnIndexOrThrow(LoansDbAdapter.KEY_PAYMENT_FREQUENCY);
+
+        // one loan is reused to work out each minimum payment
+        Loan loan = new Loan();
+        int n = 0;
+        for(boolean more = loans.moveToFirst(); more; more = loans.moveToNext())
+        {
+            double term = loans.getDouble(termColumn);
+
+            // values that did not convert during an upgrade are stored as 0
+            if(term <= 0)
+            {
+                continue;
+            }
+
+            principal[n] = LoansDbAdapter.fromCents(loans.getLong(principalColumn));
+            rate[n] = loans.getDouble(rateColumn) / 100;
+            loan.setPrincipal(principal[n]);
+            loan.setRate(rate[n]);
+            loan.setTerm(term);
+            loan.setPaymentFrequency(loans.getInt(frequencyColumn));
+
+            // payments at other frequencies are brought to months
+            minimumPayment[n] = loan.getMonthlyPayment() * loan.getPaymentsPerYear() / MONTHS_PER_YEAR;
+            n++;
+        }
+        return new PayoffPlanner(principal, rate, minimumPayment, n);
+    }
+
+    public int size()
+    {
+        return mCount;
+    }
+
+    /**
+     * The sum of the minimum payments, the smallest budget a plan can have.
+     */
+    public double getMinimumBudget()
+    {
+        return mMinimumBudget;
+    }
+
+    /**
+     * Plan every strategy with the same budget, in strategy order.
+     *
+     * @param customOrder
+     *            loans in the order to target them for
+     *            {@link #STRATEGY_CUSTOM}
+     */
+    public Plan[] compare(double budget, int[] customOrder)
+    {
+        return new Plan[] { plan(STRATEGY_SNOWBALL, budget, null), plan(STRATEGY_AVALANCHE, budget, null),
+                plan(STRATEGY_CUSTOM, budget, customOrder) };
+    }
+
+    /**
+     * @param strategy
+     *            one of the STRATEGY_ constants
+     * @param budget
+     *            total paid toward the loans each month
+     * @param customOrder
+     *            loans in the order to target them, only used for
+     *            {@link #STRATEGY_CUSTOM}
+     * @throws IllegalArgumentException
+     *             if the budget does not cover the minimum payments
+     */
+    public Plan plan(int strategy, double budget, int[] customOrder)
+    {
+        if(budget < mMinimumBudget - Loan.BALANCE_EPSILON)
+        {
+            throw new IllegalArgumentException("Budget " + budget + " is below the minimum payments " + mMinimumBudget);
+        }
+
+        int[] order = getOrder(strategy, customOrder);
+
+        // every loan starts at its minimum, the first target gets the rest
+        PriorityQueue<Long> payoffs = new PriorityQueue<Long>(Math.max(1, mCount));
+        for(int i = 0; i < mCount; i++)
+        {
+            mBalance[i] = mPrincipal[i];
+            mPayment[i] = mMinimumPayment[i];
+            mPaid[i] = 0;
+            mSince[i] = 0;
+            mPaidOff[i] = false;
+        }
+        if(mCount > 0)
+        {
+            mPayment[order[0]] += Math.max(0, budget - mMinimumBudget);
+        }
+        for(int i = 0; i < mCount; i++)
+        {
+            schedulePayoff(payoffs, i);
+        }
+
+        int target = 0;
+        int months = 0;
+        while(!payoffs.isEmpty())
+        {
+            long event = payoffs.poll();
+            int loan = (int) (event & LOAN_MASK);
+            int month = (int) (event >>> LOAN_BITS);
+
+            // the loan's payment changed since this payoff was queued
+            if(mPaidOff[loan] || mPayoffMonth[loan] != month)
+            {
+                continue;
+            }
+            if(month >= MAX_MONTHS)
+            {
+                months = NEVER;
+                break;
+            }
+
+            months = month;
+            double leftover = payOff(loan, month);
+            double rolled = mPayment[loan];
+
+            // the freed payment goes to the first target still owing; what
+            // the last payment left over this month goes to it right away
+            while(true)
+            {
+                while(target < mCount && mPaidOff[order[target]])
+                {
+                    target++;
+                }
+                if(target == mCount)
+                {
+                    break;
+                }
+
+                int next = order[target];
+                if(mPayoffMonth[next] == month)
+                {
+                    leftover += payOff(next, month);
+                    rolled += mPayment[next];
+                    continue;
+                }
+
+                advance(next, month);
+                if(leftover >= mBalance[next] - Loan.BALANCE_EPSILON)
+                {
+                    leftover -= mBalance[next];
+                    mPaid[next] += mBalance[next];
+                    mBalance[next] = 0;
+                    mPaidOff[next] = true;
+                    mPayoffMonth[next] = month;
+                    rolled += mPayment[next];
+                    continue;
+                }
+
+                mBalance[next] -= leftover;
+                mPaid[next] += leftover;
+                mPayment[next] += rolled;
+                schedulePayoff(payoffs, next);
+                break;
+            }
+        }
+
+        double totalPaid = 0;
+        double totalInterestPaid = 0;
+        int[] payoffMonths = new int[mCount];
+        for(int i = 0; i < mCount; i++)
+        {
+            if(mPaidOff[i])
+            {
+                payoffMonths[i] = mPayoffMonth[i];
+            }
+            else
+            {
+                // still owing at the horizon, the interest so far is what
+                // was paid beyond the principal retired
+                advance(i, MAX_MONTHS);
+                payoffMonths[i] = NEVER;
+            }
+            totalPaid += mPaid[i];
+            totalInterestPaid += mPaid[i] - (mPrincipal[i] - mBalance[i]);
+        }
+        return new Plan(strategy, months, totalPaid, totalInterestPaid, order, payoffMonths);
+    }
+
+    // loans in the order they are targeted
+    private int[] getOrder(int strategy, int[] customOrder)
+    {
+        if(strategy == STRATEGY_CUSTOM)
+        {
+            if(customOrder == null || customOrder.length != mCount)
+            {
+                throw new IllegalArgumentException("Custom order needs " + mCount + " loans");
+            }
+            int[] order = new int[mCount];
+            System.arraycopy(customOrder, 0, order, 0, mCount);
+            return order;
+        }
+
+        Comparator<Integer> comparator;
+        switch(strategy)
+        {
+            case STRATEGY_SNOWBALL:
+                comparator = new Comparator<Integer>()
+                {
+                    public int compare(Integer a, Integer b)
+                    {
+                        return Double.compare(mPrincipal[a], mPrincipal[b]);
+                    }
+                };
+                break;
+            case STRATEGY_AVALANCHE:
+                // ties go to the smaller balance
+                comparator = new Comparator<Integer>()
+                {
+                    public int compare(Integer a, Integer b)
+                    {
+                        int byRate = Double.compare(mRate[b], mRate[a]);
+                        return (byRate != 0) ? byRate : Double.compare(mPrincipal[a], mPrincipal[b]);
+                    }
+                };
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown strategy " + strategy);
+        }
+
+        Integer[] sorted = new Integer[mCount];
+        for(int i = 0; i < mCount; i++)
+        {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, comparator);
+
+        int[] order = new int[mCount];
+        for(int i = 0; i < mCount; i++)
+        {
+            order[i] = sorted[i];
+        }
+        return order;
+    }
+
+    // queue the month of the loan's last payment at its current payment
+    private void schedulePayoff(PriorityQueue<Long> payoffs, int loan)
+    {
+        int remaining = MAX_MONTHS - mSince[loan];
+        int payments = Loan.payoffCount(mBalance[loan], mRate[loan] / MONTHS_PER_YEAR, mPayment[loan], remaining);
+        mPayoffMonth[loan] = mSince[loan] + Math.max(1, payments);
+        payoffs.add(((long) mPayoffMonth[loan] << LOAN_BITS) | loan);
+    }
+
+    // bring the loan's balance and payments up to the end of the month
+    private void advance(int loan, int month)
+    {
+        int payments = month - mSince[loan];
+        mPaid[loan] += mPayment[loan] * payments;
+        mBalance[loan] = Loan.balanceAfter(mBalance[loan], mRate[loan] / MONTHS_PER_YEAR, mPayment[loan], payments);
+        mSince[loan] = month;
+    }
+
+    // make the loan's last payment in the month, returning what was left of
+    // its payment
+    private double payOff(int loan, int month)
+    {
+        advance(loan, month - 1);
+        double last = Math.min(mPayment[loan], Math.max(0, mBalance[loan]) * (1 + mRate[loan] / MONTHS_PER_YEAR));
+        mPaid[loan] += last;
+        mBalance[loan] = 0;
+        mSince[loan] = month;
+        mPaidOff[loan] = true;
+        mPayoffMonth[loan] = month;
+        return mPayment[loan] - last;
+    }
+}
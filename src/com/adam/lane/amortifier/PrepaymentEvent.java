@@ -0,0 +1,85 @@
+package com.adam.lane.amortifier;
+
+/**
+ * A lump sum paid toward principal along with a scheduled payment, either
+ * once (a windfall in month 37) or repeating every so many payments until
+ * the loan is paid off (an annual bonus). A lump sum never pays more than
+ * the balance left after its payment. Instances are immutable.
+ */
+public class PrepaymentEvent
+{
+    private final int mFirstPayment;
+    private final double mAmount;
+    private final int mInterval;
+
+    /**
+     * @param firstPayment
+     *            payment (0 based) the first lump sum is paid with
+     * @param amount
+     *            the lump sum
+     * @param interval
+     *            payments between repeats, 0 for a one-off
+     */
+    public PrepaymentEvent(int firstPayment, double amount, int interval)
+    {
+        if(firstPayment < 0 || interval < 0)
+        {
+            throw new IllegalArgumentException("firstPayment and interval must not be negative");
+        }
+        mFirstPayment = firstPayment;
+        mAmount = amount;
+        mInterval = interval;
+    }
+
+    /**
+     * Payment (0 based) of the first lump sum at or after the given payment,
+     * or Integer.MAX_VALUE when there are no more.
+     */
+    public int getNextPayment(int payment)
+    {
+        if(payment <= mFirstPayment)
+        {
+            return mFirstPayment;
+        }
+        if(mInterval == 0)
+        {
+            return Integer.MAX_VALUE;
+        }
+        long intervals = ((long) payment - mFirstPayment + mInterval - 1) / mInterval;
+        return (int) Math.min(Integer.MAX_VALUE, mFirstPayment + intervals * mInterval);
+    }
+
+    // getters to access data
+    public int getFirstPayment()
+    {
+        return mFirstPayment;
+    }
+
+    public double getAmount()
+    {
+        return mAmount;
+    }
+
+    public int getInterval()
+    {
+        return mInterval;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof PrepaymentEvent))
+        {
+            return false;
+        }
+        PrepaymentEvent other = (PrepaymentEvent) o;
+        return mFirstPayment == other.mFirstPayment && mInterval == other.mInterval && Double.compare(mAmount, other.mAmount) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        long bits = Double.doubleToLongBits(mAmount);
+        return 31 * (31 * mFirstPayment + mInterval) + (int) (bits ^ (bits >>> 32));
+    }
+}
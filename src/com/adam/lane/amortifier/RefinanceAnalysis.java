@@ -0,0 +1,267 @@
+package com.adam.lane.amortifier;
+
+/**
+ * Refinancing offers for a loan compared against keeping it, e.g. a handful
+ * of rates at 15 and 30 years. Each offer is a new fixed-rate loan for the
+ * balance left after the payments made so far, paid at the same frequency
+ * and with the same extra payment, with closing costs paid up front.
+ *
+ * Savings are the interest the current loan would have charged less the
+ * interest the offer charges. For a fixed-rate loan the break-even point is
+ * found by bisecting the two cumulative-interest curves, so no table is
+ * built and each offer costs a few dozen closed-form lookups. A loan whose
+ * rate resets or that has lump sums can gain and lose against the offer
+ * more than once, so its savings are scanned payment by payment instead.
+ * The whole batch is computed into primitive arrays.
+ */
+public class RefinanceAnalysis
+{
+    /**
+     * Break-even of an offer whose savings never cover its closing costs
+     */
+    public static final int NEVER = -1;
+
+    private final int mPaymentsMade;
+    private final double mBalance;
+    private final double mRemainingInterest;
+
+    private final double[] mRates;
+    private final double[] mTerms;
+    private final double[] mClosingCosts;
+    private final double[] mPayments;
+    private final double[] mInterestSavings;
+    private final int[] mBreakEven;
+
+    /**
+     * @param loan
+     *            the current loan
+     * @param paymentsMade
+     *            payments already made on it
+     * @param rates
+     *            annual rate of each offer, as for {@link Loan#getRate()}
+     * @param terms
+     *            term of each offer, in months
+     * @param closingCosts
+     *            up-front cost of each offer
+     * @param count
+     *            number of offers to evaluate
+     */
+    public RefinanceAnalysis(Loan loan, int paymentsMade, double[] rates, double[] terms, double[] closingCosts, int count)
+    {
+        mPaymentsMade = Math.max(0, Math.min(paymentsMade, loan.getPaymentCount()));
+        mBalance = loan.getBalanceAfter(mPaymentsMade);
+        mRemainingInterest = loan.getTotalInterestPaid() - loan.getCumulativeInterestPaid(mPaymentsMade);
+
+        mRates = new double[count];
+        mTerms = new double[count];
+        mClosingCosts = new double[count];
+        mPayments = new double[count];
+        mInterestSavings = new double[count];
+        mBreakEven = new int[count];
+
+        // bisection relies on the savings rising and falling at most once
+        boolean bisect = loan.getCalculationMode() == Loan.MODE_FLOATING_POINT && loan.isSingleSegment();
+
+        // one loan is reused for every offer, only its rate and term change
+        Loan offer = new Loan(mBalance, 0, 0, loan.getExtraPayment());
+        offer.setPaymentFrequency(loan.getPaymentFrequency());
+        offer.setCalculationMode(loan.getCalculationMode());
+
+        for(int i = 0; i < count; i++)
+        {
+            mRates[i] = rates[i];
+            mTerms[i] = terms[i];
+            mClosingCosts[i] = closingCosts[i];
+
+            offer.setRate(rates[i]);
+            offer.setTerm(terms[i]);
+            mPayments[i] = offer.getMonthlyPayment();
+            mInterestSavings[i] = mRemainingInterest - offer.getTotalInterestPaid();
+            mBreakEven[i] = bisect ? findBreakEven(loan, offer, closingCosts[i]) : scanBreakEven(loan, offer, closingCosts[i]);
+        }
+    }
+
+    // the fewest payments after refinancing whose interest savings cover
+    // the costs. The savings curve rises while each payment saves interest
+    // and falls once payments cost more interest than before; the saving of
+    // a single payment changes sign at most once, so the turn is bisected
+    // first and then the part of the curve that rises toward the costs
+    private int findBreakEven(Loan loan, Loan offer, double closingCosts)
+    {
+        if(closingCosts <= 0)
+        {
+            return 0;
+        }
+
+        int horizon = Math.max(loan.getPaymentCount() - mPaymentsMade, offer.getPaymentCount());
+        if(horizon == 0)
+        {
+            return NEVER;
+        }
+
+        // invariant: the saving at low has the same sign as the first one,
+        // the saving at high does not (horizon stands in for "never")
+        boolean savesAtFirst = getSaving(loan, offer, 0) >= 0;
+        int low = 0;
+        int high = horizon;
+        while(high - low > 1)
+        {
+            int middle = (low + high) >>> 1;
+            if((getSaving(loan, offer, middle) >= 0) == savesAtFirst)
+            {
+                low = middle;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        // the savings rise up to the turn, or from the turn to the end
+        int turn = high;
+        low = savesAtFirst ? 0 : turn;
+        high = savesAtFirst ? turn : horizon;
+        if(getSavings(loan, offer, high) < closingCosts)
+        {
+            return NEVER;
+        }
+
+        // invariant: the savings after low payments fall short, after high
+        // they cover the costs
+        while(high - low > 1)
+        {
+            int middle = (low + high) >>> 1;
+            if(getSavings(loan, offer, middle) >= closingCosts)
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle;
+            }
+        }
+        return high;
+    }
+
+    // the fewest payments after refinancing whose interest savings cover
+    // the costs, adding up the saving of one payment at a time
+    private int scanBreakEven(Loan loan, Loan offer, double closingCosts)
+    {
+        if(closingCosts <= 0)
+        {
+            return 0;
+        }
+
+        int horizon = Math.max(loan.getPaymentCount() - mPaymentsMade, offer.getPaymentCount());
+        double savings = 0;
+        for(int payment = 0; payment < horizon; payment++)
+        {
+            savings += getSaving(loan, offer, payment);
+            if(savings >= closingCosts)
+            {
+                return payment + 1;
+            }
+        }
+        return NEVER;
+    }
+
+    // interest saved by the given payment (0 based) after refinancing
+    private double getSaving(Loan loan, Loan offer, int payment)
+    {
+        return loan.getInterestPaid(mPaymentsMade + payment) - offer.getInterestPaid(payment);
+    }
+
+    // interest saved by the first given number of payments after
+    // refinancing
+    private double getSavings(Loan loan, Loan offer, int payments)
+    {
+        return loan.getInterestPaidBetween(mPaymentsMade, mPaymentsMade + payments) - offer.getCumulativeInterestPaid(payments);
+    }
+
+    public int size()
+    {
+        return mRates.length;
+    }
+
+    /**
+     * Balance being refinanced.
+     */
+    public double getBalance()
+    {
+        return mBalance;
+    }
+
+    /**
+     * Interest the current loan still charges if it is kept.
+     */
+    public double getRemainingInterest()
+    {
+        return mRemainingInterest;
+    }
+
+    // getters to access data, by offer
+    public double getRate(int index)
+    {
+        return mRates[index];
+    }
+
+    public double getTerm(int index)
+    {
+        return mTerms[index];
+    }
+
+    public double getClosingCosts(int index)
+    {
+        return mClosingCosts[index];
+    }
+
+    /**
+     * Minimum payment of the offer, at the loan's payment frequency.
+     */
+    public double getPayment(int index)
+    {
+        return mPayments[index];
+    }
+
+    /**
+     * Lifetime interest saved by the offer, negative when it costs more
+     * interest than keeping the loan.
+     */
+    public double getInterestSavings(int index)
+    {
+        return mInterestSavings[index];
+    }
+
+    /**
+     * Lifetime interest saved less the closing costs.
+     */
+    public double getNetSavings(int index)
+    {
+        return mInterestSavings[index] - mClosingCosts[index];
+    }
+
+    /**
+     * Payments after refinancing until the interest saved covers the
+     * closing costs, or {@link #NEVER}.
+     */
+    public int getBreakEven(int index)
+    {
+        return mBreakEven[index];
+    }
+
+    /**
+     * The offer with the largest net savings, -1 when there are none.
+     */
+    public int getBestOffer()
+    {
+        int best = -1;
+        for(int i = 0; i < mRates.length; i++)
+        {
+            if(best < 0 || getNetSavings(i) > getNetSavings(best))
+            {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
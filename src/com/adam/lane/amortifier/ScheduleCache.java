@@ -0,0 +1,232 @@
+package com.adam.lane.amortifier;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Process-wide cache of computed loans, keyed by the loan parameters.
+ * Summaries and paged schedules are kept in least recently used order and
+ * evicted once their estimated size goes over a share of the heap, or all
+ * at once when the system reports low memory. The estimate counts the
+ * pages a schedule can hold and the simulated table of a loan that has no
+ * closed form.
+ */
+public class ScheduleCache
+{
+    // rough heap cost of an entry with only a summary
+    private static final int SUMMARY_BYTES = 128;
+
+    private static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 64;
+
+    private static final PrepaymentEvent[] NO_PREPAYMENTS = new PrepaymentEvent[0];
+
+    private static final LinkedHashMap<Key, Entry> sEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private static long sBytes;
+    private static int sHitCount;
+    private static int sMissCount;
+
+    private ScheduleCache()
+    {
+    }
+
+    /**
+     * Return the summary for the given monthly fixed-rate loan parameters,
+     * computing it on a miss.
+     */
+    public static LoanSummary getSummary(double principal, double rate, double term, double extra)
+    {
+        return getSummary(principal, rate, term, extra, Loan.FREQUENCY_MONTHLY, null, null);
+    }
+
+    /**
+     * Return the summary for the given loan parameters, computing it on a
+     * miss.
+     * 
+     * @param paymentFrequency
+     *            one of the Loan.FREQUENCY_ constants
+     * @param adjustableRate
+     *            the rate-change terms, null for a fixed-rate loan
+     * @param prepayments
+     *            the lump sums, null or empty for none
+     */
+    public static synchronized LoanSummary getSummary(double principal, double rate, double term, double extra, int paymentFrequency,
+            AdjustableRate adjustableRate, PrepaymentEvent[] prepayments)
+    {
+        Entry entry = getEntry(new Key(principal, rate, term, extra, paymentFrequency, adjustableRate, prepayments));
+        if(entry.summary == null)
+        {
+            entry.summary = new LoanSummary(entry.loan);
+            resize(entry);
+        }
+        return entry.summary;
+    }
+
+    /**
+     * Return the paged schedule for the given monthly fixed-rate loan
+     * parameters, creating it on a miss.
+     */
+    public static PagedAmortizationSchedule getSchedule(double principal, double rate, double term, double extra)
+    {
+        return getSchedule(principal, rate, term, extra, Loan.FREQUENCY_MONTHLY, null, null);
+    }
+
+    /**
+     * Return the paged schedule for the given loan parameters, creating it
+     * on a miss. Pages already computed by an earlier caller are reused.
+     * 
+     * @param paymentFrequency
+     *            one of the Loan.FREQUENCY_ constants
+     * @param adjustableRate
+     *            the rate-change terms, null for a fixed-rate loan
+     * @param prepayments
+     *            the lump sums, null or empty for none
+     */
+    public static synchronized PagedAmortizationSchedule getSchedule(double principal, double rate, double term, double extra,
+            int paymentFrequency, AdjustableRate adjustableRate, PrepaymentEvent[] prepayments)
+    {
+        Entry entry = getEntry(new Key(principal, rate, term, extra, paymentFrequency, adjustableRate, prepayments));
+        if(entry.schedule == null)
+        {
+            entry.schedule = new PagedAmortizationSchedule(entry.loan);
+            resize(entry);
+        }
+        return entry.schedule;
+    }
+
+    /**
+     * Drop every entry, e.g. from onLowMemory().
+     */
+    public static synchronized void clear()
+    {
+        trimToSize(0);
+    }
+
+    public static synchronized int getHitCount()
+    {
+        return sHitCount;
+    }
+
+    public static synchronized int getMissCount()
+    {
+        return sMissCount;
+    }
+
+    private static Entry getEntry(Key key)
+    {
+        Entry entry = sEntries.get(key);
+        if(entry != null)
+        {
+            sHitCount++;
+            return entry;
+        }
+
+        sMissCount++;
+        Loan loan = new Loan(key.principal, key.rate, key.term, key.extra);
+        loan.setPaymentFrequency(key.paymentFrequency);
+        loan.setAdjustableRate(key.adjustableRate);
+        loan.setPrepayments(key.prepayments);
+        entry = new Entry(loan);
+        sEntries.put(key, entry);
+        sBytes += entry.bytes;
+        trimToSize(MAX_BYTES);
+        return entry;
+    }
+
+    // re-estimate an entry once it holds more, e.g. a schedule
+    private static void resize(Entry entry)
+    {
+        long bytes = SUMMARY_BYTES + entry.loan.getFallbackByteSize()
+                + ((entry.schedule != null) ? PagedAmortizationSchedule.MAX_BYTE_SIZE : 0);
+        sBytes += bytes - entry.bytes;
+        entry.bytes = bytes;
+        trimToSize(MAX_BYTES);
+    }
+
+    // evict least recently used entries until the estimate fits
+    private static void trimToSize(long maxBytes)
+    {
+        Iterator<Entry> iterator = sEntries.values().iterator();
+        while(sBytes > maxBytes && iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            sBytes -= entry.bytes;
+            iterator.remove();
+        }
+    }
+
+    private static class Entry
+    {
+        final Loan loan;
+        LoanSummary summary;
+        PagedAmortizationSchedule schedule;
+
+        // size counted in sBytes
+        long bytes = SUMMARY_BYTES;
+
+        Entry(Loan loan)
+        {
+            this.loan = loan;
+        }
+    }
+
+    private static class Key
+    {
+        final double principal;
+        final double rate;
+        final double term;
+        final double extra;
+        final int paymentFrequency;
+        final AdjustableRate adjustableRate;
+        final PrepaymentEvent[] prepayments;
+
+        Key(double principal, double rate, double term, double extra, int paymentFrequency, AdjustableRate adjustableRate,
+                PrepaymentEvent[] prepayments)
+        {
+            this.principal = principal;
+            this.rate = rate;
+            this.term = term;
+            this.extra = extra;
+            this.paymentFrequency = paymentFrequency;
+            this.adjustableRate = adjustableRate;
+
+            // copied, the key must not change while it is in the map
+            this.prepayments = (prepayments == null) ? NO_PREPAYMENTS : prepayments.clone();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) o;
+            return Double.compare(principal, other.principal) == 0 && Double.compare(rate, other.rate) == 0
+                    && Double.compare(term, other.term) == 0 && Double.compare(extra, other.extra) == 0
+                    && paymentFrequency == other.paymentFrequency
+                    && ((adjustableRate == null) ? other.adjustableRate == null : adjustableRate.equals(other.adjustableRate))
+                    && Arrays.equals(prepayments, other.prepayments);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = 17;
+            hash = 31 * hash + hashDouble(principal);
+            hash = 31 * hash + hashDouble(rate);
+            hash = 31 * hash + hashDouble(term);
+            hash = 31 * hash + hashDouble(extra);
+            hash = 31 * hash + paymentFrequency;
+            hash = 31 * hash + ((adjustableRate == null) ? 0 : adjustableRate.hashCode());
+            hash = 31 * hash + Arrays.hashCode(prepayments);
+            return hash;
+        }
+
+        private static int hashDouble(double value)
+        {
+            long bits = Double.doubleToLongBits(value);
+            return (int) (bits ^ (bits >>> 32));
+        }
+    }
+}
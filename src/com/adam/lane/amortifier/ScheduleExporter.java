@@ -0,0 +1,183 @@
+package com.adam.lane.amortifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes amortization tables to a channel as CSV or as a compact binary
+ * format. Rows are generated a page at a time into a reused schedule and
+ * encoded straight into a reused direct buffer, so exporting any number of
+ * loans holds one page of rows and one buffer at a time. An exporter is not
+ * thread safe; use one per thread.
+ *
+ * The binary format is big-endian: the int {@link #BINARY_MAGIC}, the int
+ * {@link #BINARY_VERSION}, the loan's principal, annual rate, term and extra
+ * payment as doubles, the int payments per year, the int row count, then
+ * for each row the balance, total paid, principal paid, interest paid and
+ * additional principal paid as doubles.
+ */
+public class ScheduleExporter
+{
+    public static final int BINARY_MAGIC = 0x414d5254; // "AMRT"
+    public static final int BINARY_VERSION = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // longest CSV row: six numbers of at most 20 digits, sign, point,
+    // separators and the newline
+    private static final int MAX_CSV_ROW_BYTES = 6 * 24;
+
+    private static final int BINARY_ROW_BYTES = 5 * 8;
+
+    private static final byte[] CSV_HEADER = "payment,balance,total_paid,principal_paid,interest_paid,additional_principal_paid\n".getBytes();
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final AmortizationSchedule mPage = new AmortizationSchedule(PagedAmortizationSchedule.PAGE_SIZE);
+
+    // digits of the number being encoded, least significant first
+    private final byte[] mDigits = new byte[20];
+
+    /**
+     * Write the loan's table as CSV, one row per payment numbered from 1,
+     * with amounts rounded to the cent.
+     *
+     * @return the number of rows written
+     * @throws IOException
+     *             if the channel cannot be written
+     */
+    public int writeCsv(Loan loan, WritableByteChannel channel) throws IOException
+    {
+        ByteBuffer buffer = mBuffer;
+        buffer.clear();
+        buffer.put(CSV_HEADER);
+
+        int count = loan.getPaymentCount();
+        for(int first = 0; first < count; first += mPage.size())
+        {
+            loan.fillSchedule(mPage, first, Math.min(PagedAmortizationSchedule.PAGE_SIZE, count - first));
+            if(mPage.size() == 0)
+            {
+                break;
+            }
+
+            for(int row = 0; row < mPage.size(); row++)
+            {
+                if(buffer.remaining() < MAX_CSV_ROW_BYTES)
+                {
+                    drain(channel);
+                }
+
+                putLong(first + row + 1);
+                buffer.put((byte) ',');
+                putCents(mPage.getBalance(row));
+                buffer.put((byte) ',');
+                putCents(mPage.getTotalPaid(row));
+                buffer.put((byte) ',');
+                putCents(mPage.getPrincipalPaid(row));
+                buffer.put((byte) ',');
+                putCents(mPage.getInterestPaid(row));
+                buffer.put((byte) ',');
+                putCents(mPage.getAdditionalPrincipalPaid(row));
+                buffer.put((byte) '\n');
+            }
+        }
+
+        drain(channel);
+        return count;
+    }
+
+    /**
+     * Write the loan's table in the binary format described above.
+     *
+     * @return the number of rows written
+     * @throws IOException
+     *             if the channel cannot be written
+     */
+    public int writeBinary(Loan loan, WritableByteChannel channel) throws IOException
+    {
+        ByteBuffer buffer = mBuffer;
+        int count = loan.getPaymentCount();
+
+        buffer.clear();
+        buffer.putInt(BINARY_MAGIC);
+        buffer.putInt(BINARY_VERSION);
+        buffer.putDouble(loan.getPrincipal());
+        buffer.putDouble(loan.getRate());
+        buffer.putDouble(loan.getTerm());
+        buffer.putDouble(loan.getExtraPayment());
+        buffer.putInt(loan.getPaymentsPerYear());
+        buffer.putInt(count);
+
+        for(int first = 0; first < count; first += mPage.size())
+        {
+            loan.fillSchedule(mPage, first, Math.min(PagedAmortizationSchedule.PAGE_SIZE, count - first));
+            if(mPage.size() == 0)
+            {
+                break;
+            }
+
+            for(int row = 0; row < mPage.size(); row++)
+            {
+                if(buffer.remaining() < BINARY_ROW_BYTES)
+                {
+                    drain(channel);
+                }
+
+                buffer.putDouble(mPage.getBalance(row));
+                buffer.putDouble(mPage.getTotalPaid(row));
+                buffer.putDouble(mPage.getPrincipalPaid(row));
+                buffer.putDouble(mPage.getInterestPaid(row));
+                buffer.putDouble(mPage.getAdditionalPrincipalPaid(row));
+            }
+        }
+
+        drain(channel);
+        return count;
+    }
+
+    // write out what has been encoded and make the buffer ready to fill again
+    private void drain(WritableByteChannel channel) throws IOException
+    {
+        mBuffer.flip();
+        while(mBuffer.hasRemaining())
+        {
+            channel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    // an amount as plain dollars rounded to the cent, e.g. 1234.5 -> 1234.50
+    private void putCents(double amount)
+    {
+        long cents = Math.round(amount * 100);
+        if(cents < 0)
+        {
+            mBuffer.put((byte) '-');
+            cents = -cents;
+        }
+
+        putLong(cents / 100);
+        mBuffer.put((byte) '.');
+        long fraction = cents % 100;
+        mBuffer.put((byte) ('0' + fraction / 10));
+        mBuffer.put((byte) ('0' + fraction % 10));
+    }
+
+    // a non-negative whole number in ASCII
+    private void putLong(long value)
+    {
+        int length = 0;
+        do
+        {
+            mDigits[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        while(value != 0);
+
+        while(length > 0)
+        {
+            mBuffer.put(mDigits[--length]);
+        }
+    }
+}
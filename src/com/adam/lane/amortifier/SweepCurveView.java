@@ -0,0 +1,137 @@
+package com.adam.lane.amortifier;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Plots an {@link ExtraPaymentSweep}: lifetime interest and payoff month
+ * against the extra monthly payment, each scaled to the view height, with a
+ * marker on the selected point. The curves are only rebuilt when the sweep
+ * or the view size changes, so moving the marker is cheap.
+ */
+public class SweepCurveView extends View
+{
+    private ExtraPaymentSweep mSweep;
+    private int mSelected;
+
+    private final Paint mInterestPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mPaymentsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mMarkerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Path mInterestPath = new Path();
+    private final Path mPaymentsPath = new Path();
+    private boolean mPathsValid;
+
+    public SweepCurveView(Context context)
+    {
+        super(context);
+        init();
+    }
+
+    public SweepCurveView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+        init();
+    }
+
+    private void init()
+    {
+        float density = getResources().getDisplayMetrics().density;
+
+        mInterestPaint.setColor(Color.CYAN);
+        mInterestPaint.setStyle(Paint.Style.STROKE);
+        mInterestPaint.setStrokeWidth(2 * density);
+
+        mPaymentsPaint.setColor(Color.YELLOW);
+        mPaymentsPaint.setStyle(Paint.Style.STROKE);
+        mPaymentsPaint.setStrokeWidth(2 * density);
+
+        mMarkerPaint.setColor(Color.WHITE);
+        mMarkerPaint.setStrokeWidth(density);
+    }
+
+    public void setSweep(ExtraPaymentSweep sweep)
+    {
+        mSweep = sweep;
+        mSelected = 0;
+        mPathsValid = false;
+        invalidate();
+    }
+
+    public void setSelected(int index)
+    {
+        mSelected = index;
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh)
+    {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mPathsValid = false;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        if(mSweep == null || mSweep.size() < 2)
+        {
+            return;
+        }
+
+        if(!mPathsValid)
+        {
+            buildPaths();
+        }
+
+        canvas.drawPath(mInterestPath, mInterestPaint);
+        canvas.drawPath(mPaymentsPath, mPaymentsPaint);
+
+        float x = xFor(mSelected);
+        canvas.drawLine(x, getPaddingTop(), x, getHeight() - getPaddingBottom(), mMarkerPaint);
+    }
+
+    private void buildPaths()
+    {
+        double maxInterest = Math.max(mSweep.getMaxTotalInterest(), 1);
+        double maxPayments = Math.max(mSweep.getMaxPaymentCount(), 1);
+
+        mInterestPath.reset();
+        mPaymentsPath.reset();
+        for(int i = 0; i < mSweep.size(); i++)
+        {
+            float x = xFor(i);
+            float interestY = yFor(mSweep.getTotalInterest(i) / maxInterest);
+            float paymentsY = yFor(mSweep.getPaymentCount(i) / maxPayments);
+            if(i == 0)
+            {
+                mInterestPath.moveTo(x, interestY);
+                mPaymentsPath.moveTo(x, paymentsY);
+            }
+            else
+            {
+                mInterestPath.lineTo(x, interestY);
+                mPaymentsPath.lineTo(x, paymentsY);
+            }
+        }
+        mPathsValid = true;
+    }
+
+    private float xFor(int index)
+    {
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        return getPaddingLeft() + width * index / (mSweep.size() - 1);
+    }
+
+    // fraction of the largest value, 1 at the top of the view
+    private float yFor(double fraction)
+    {
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        return getPaddingTop() + height * (float) (1 - fraction);
+    }
+}